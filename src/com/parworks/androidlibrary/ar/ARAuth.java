@@ -5,12 +5,11 @@ import java.util.Map;
 
 import org.apache.http.HttpResponse;
 
-import android.os.AsyncTask;
-	
 import com.parworks.androidlibrary.response.ARResponseHandler;
 import com.parworks.androidlibrary.response.ARResponseHandlerImpl;
 import com.parworks.androidlibrary.response.ApiKeys;
 import com.parworks.androidlibrary.response.GetApiKeysResponse;
+import com.parworks.androidlibrary.utils.CallbackDispatcher;
 import com.parworks.androidlibrary.utils.GenericAsyncTask;
 import com.parworks.androidlibrary.utils.GenericAsyncTask.GenericCallback;
 import com.parworks.androidlibrary.utils.HttpUtils;
@@ -21,6 +20,23 @@ import com.parworks.androidlibrary.utils.HttpUtils;
  * @author Yu Sun
  */
 public class ARAuth {
+
+	private CallbackDispatcher mCallbackDispatcher;
+
+	/**
+	 * Sets the thread the listeners of asynchronous calls are called on. By
+	 * default it is the main thread.
+	 * 
+	 * @param callbackDispatcher
+	 *            the dispatcher, or null for the default
+	 */
+	public void setCallbackDispatcher(CallbackDispatcher callbackDispatcher) {
+		mCallbackDispatcher = callbackDispatcher;
+	}
+
+	public CallbackDispatcher getCallbackDispatcher() {
+		return mCallbackDispatcher;
+	}
 	
 	/**
 	 * Synchronously create an user account
@@ -92,20 +108,59 @@ public class ARAuth {
 	 * @param zipcode
 	 * @param listener
 	 */
-	public void createAccount(final String email, final String password,
+	public CancellationToken createAccount(final String email, final String password,
 			final String firstname, final String lastname, final String address1, final String address2,
 			final String city, final String state, final String country, 
 			final String zipcode, final ARListener<ApiKeys> listener) {
-		new AsyncTask<Void, Void, ApiKeys>() {
+		return createAccount(email, password, firstname, lastname, address1,
+				address2, city, state, country, zipcode, listener, null);
+	}
+	
+	/**
+	 * Asynchronously create an user account
+	 * 
+	 * @param email
+	 * @param password
+	 * @param firstname
+	 * @param lastname
+	 * @param address1
+	 * @param address2
+	 * @param city
+	 * @param state
+	 * @param country
+	 * @param zipcode
+	 * @param listener
+	 * @param onErrorListener
+	 *            called if the account can't be created. May be null.
+	 */
+	public CancellationToken createAccount(final String email, final String password,
+			final String firstname, final String lastname, final String address1, final String address2,
+			final String city, final String state, final String country, 
+			final String zipcode, final ARListener<ApiKeys> listener,
+			final ARErrorListener onErrorListener) {
+		GenericCallback<ApiKeys> genericCallback = new GenericCallback<ApiKeys>() {
+
 			@Override
-			protected ApiKeys doInBackground(Void... params) {
+			public ApiKeys toCall() {
 				return createAccount(email, password, firstname, lastname, address1, address2, city, state, country, zipcode);
 			}
+
+			@Override
+			public void onComplete(ApiKeys keys) {
+				listener.handleResponse(keys);
+			}
+
 			@Override
-			protected void onPostExecute(ApiKeys result) {
-				listener.handleResponse(result);
+			public void onError(Exception error) {
+				if (onErrorListener != null) {
+					onErrorListener.handleError(error);
+				}
 			}
-		}.execute();
+		};
+		GenericAsyncTask<ApiKeys> asyncTask = new GenericAsyncTask<ApiKeys>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
+		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 	
 	/**
@@ -151,7 +206,7 @@ public class ARAuth {
 	 * @param listener
 	 *            the callback which provides the ARSite once the call completes
 	 */
-	public void getApiKeys(final String email, final String password, final ARListener<ApiKeys> listener, final ARErrorListener onErrorListener) {
+	public CancellationToken getApiKeys(final String email, final String password, final ARListener<ApiKeys> listener, final ARErrorListener onErrorListener) {
 		
 		GenericCallback<ApiKeys> genericCallback = new GenericCallback<ApiKeys>() {
 
@@ -174,6 +229,8 @@ public class ARAuth {
 			
 		};
 		GenericAsyncTask<ApiKeys> asyncTask = new GenericAsyncTask<ApiKeys>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 }
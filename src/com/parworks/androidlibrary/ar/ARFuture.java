@@ -0,0 +1,196 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a request that completes later, such as an augment whose
+ * result is being polled for. Besides blocking in get(), callers can add
+ * listeners that are called on the thread that completes the future, or
+ * immediately if it has already completed.
+ *
+ * @param <T>
+ *            the type of the result
+ */
+public class ARFuture<T> implements Future<T> {
+
+	private T mResult;
+	private Exception mError;
+	private boolean mDone;
+	private boolean mCancelled;
+	private List<ARListener<T>> mListeners = new ArrayList<ARListener<T>>();
+	private List<ARErrorListener> mErrorListeners = new ArrayList<ARErrorListener>();
+
+	/**
+	 * Completes the future with a result.
+	 *
+	 * @return false if the future had already completed
+	 */
+	public boolean set(T result) {
+		List<ARListener<T>> listeners;
+		synchronized (this) {
+			if (mDone) {
+				return false;
+			}
+			mResult = result;
+			mDone = true;
+			listeners = mListeners;
+			mListeners = null;
+			mErrorListeners = null;
+			notifyAll();
+		}
+		for (ARListener<T> listener : listeners) {
+			listener.handleResponse(result);
+		}
+		return true;
+	}
+
+	/**
+	 * Completes the future with an error.
+	 *
+	 * @return false if the future had already completed
+	 */
+	public boolean setError(Exception error) {
+		List<ARErrorListener> errorListeners;
+		synchronized (this) {
+			if (mDone) {
+				return false;
+			}
+			mError = error;
+			mDone = true;
+			errorListeners = mErrorListeners;
+			mListeners = null;
+			mErrorListeners = null;
+			notifyAll();
+		}
+		for (ARErrorListener errorListener : errorListeners) {
+			errorListener.handleError(error);
+		}
+		return true;
+	}
+
+	/**
+	 * Calls listener with the result, or onErrorListener with the error, when
+	 * the future completes. Neither is called if the future is cancelled.
+	 *
+	 * @param onErrorListener
+	 *            may be null
+	 */
+	public void addListener(ARListener<T> listener,
+			ARErrorListener onErrorListener) {
+		synchronized (this) {
+			if (!mDone) {
+				mListeners.add(listener);
+				if (onErrorListener != null) {
+					mErrorListeners.add(onErrorListener);
+				}
+				return;
+			}
+		}
+		if (mCancelled) {
+			return;
+		}
+		if (mError == null) {
+			listener.handleResponse(mResult);
+		} else if (onErrorListener != null) {
+			onErrorListener.handleError(mError);
+		}
+	}
+
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if (mDone) {
+			return false;
+		}
+		mCancelled = true;
+		mDone = true;
+		mListeners = null;
+		mErrorListeners = null;
+		notifyAll();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	/**
+	 * Waits for the result. Unlike Future.get(), errors are rethrown as they
+	 * are, so an ARException from the request reaches the caller unchanged.
+	 *
+	 * @throws ARException
+	 *             if the request failed, was cancelled or the wait was
+	 *             interrupted
+	 */
+	public T getResult() {
+		try {
+			return get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ARException("Interrupted while waiting for the result.", e);
+		} catch (CancellationException e) {
+			throw new ARException("The request was cancelled.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ARException(e.getCause());
+		}
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!mDone) {
+			wait();
+		}
+		return report();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!mDone) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return report();
+	}
+
+	private T report() throws ExecutionException {
+		if (mCancelled) {
+			throw new CancellationException();
+		}
+		if (mError != null) {
+			throw new ExecutionException(mError);
+		}
+		return mResult;
+	}
+}
@@ -29,6 +29,9 @@ import com.parworks.androidlibrary.response.SiteInfoSummary;
  * uploaded. After the base images have been processed, the state of an ARSite
  * changes to NEEDS_OVERLAYS and finally to READY_TO_AUGMENT_IMAGES
  * 
+ * The asynchronous methods return a CancellationToken. Cancelling it aborts
+ * the request and no callback is called.
+ * 
  * @author Jules White
  * 
  */
@@ -66,7 +69,7 @@ public interface ARSite {
 	 * @param siteId
 	 * @param listener
 	 */
-	public void getSiteOverlays(String siteId, ARListener<List<ImageOverlayInfo>> listener,
+	public CancellationToken getSiteOverlays(String siteId, ARListener<List<ImageOverlayInfo>> listener,
 			ARErrorListener onErrorListener);
 	
 	/**
@@ -79,7 +82,7 @@ public interface ARSite {
 	/**
 	 * Asynchronously get the site's base images
 	 */
-	public void getBaseImages(ARListener<List<BaseImageInfo>> listener,
+	public CancellationToken getBaseImages(ARListener<List<BaseImageInfo>> listener,
 			ARErrorListener onErrorListener);
 
 	/**
@@ -89,7 +92,7 @@ public interface ARSite {
 	 *            the callback to be used when the call completes. Will contain
 	 *            a SiteInfo object.
 	 */
-	public void getSiteInfo(ARListener<SiteInfo> listener, ARErrorListener onErrorListener);
+	public CancellationToken getSiteInfo(ARListener<SiteInfo> listener, ARErrorListener onErrorListener);
 	
 	/**
 	 * Makes an asynchronous server request to get site info summary
@@ -98,7 +101,7 @@ public interface ARSite {
 	 *            the callback to be used when the call completes. Will contain
 	 *            a SiteInfo object.
 	 */
-	public void getSiteInfoSummary(final ARListener<SiteInfoSummary> listener,
+	public CancellationToken getSiteInfoSummary(final ARListener<SiteInfoSummary> listener,
 			ARErrorListener onErrorListener);
 
 	/**
@@ -115,7 +118,7 @@ public interface ARSite {
 	 */
 	@RequiredState({ State.NEEDS_MORE_BASE_IMAGES,
 			State.NEEDS_BASE_IMAGE_PROCESSING })
-	public void addBaseImage(String filename, InputStream image,
+	public CancellationToken addBaseImage(String filename, InputStream image,
 			ARListener<BaseImage> listener, ARErrorListener onErrorListener);
 
 	/**
@@ -127,7 +130,7 @@ public interface ARSite {
 	 *            state of the site
 	 */
 	@RequiredState({ State.NEEDS_BASE_IMAGE_PROCESSING })
-	public void processBaseImages(BaseImageProcessingProfile profile, ARListener<State> listener, ARErrorListener onErrorListener);
+	public CancellationToken processBaseImages(BaseImageProcessingProfile profile, ARListener<State> listener, ARErrorListener onErrorListener);
 
 	/**
 	 * Makes an asynchronous server request to get the current state of the
@@ -137,7 +140,7 @@ public interface ARSite {
 	 *            the callback to be used when the call completes providing the
 	 *            state of the site
 	 */
-	public void getState(ARListener<State> listener, ARErrorListener onErrorListener);
+	public CancellationToken getState(ARListener<State> listener, ARErrorListener onErrorListener);
 
 	/**
 	 * Asynchronously add an overlay. Throws an ARException if the state is not
@@ -150,7 +153,7 @@ public interface ARSite {
 	 *            overlay response which contains the new overlay id
 	 */
 	@RequiredState({ State.NEEDS_OVERLAYS, State.READY_TO_AUGMENT_IMAGES })
-	public void addOverlay(Overlay overlay, ARListener<OverlayResponse> listener,
+	public CancellationToken addOverlay(Overlay overlay, ARListener<OverlayResponse> listener,
 			ARErrorListener onErrorListener);
 
 	/**
@@ -166,7 +169,7 @@ public interface ARSite {
 	 *            overlay response which contains the new overlay id
 	 */
 	@RequiredState(State.READY_TO_AUGMENT_IMAGES)
-	public void updateOverlay(OverlayResponse overlayToUpdate, Overlay newOverlay,
+	public CancellationToken updateOverlay(OverlayResponse overlayToUpdate, Overlay newOverlay,
 			ARListener<OverlayResponse> listener, ARErrorListener onErrorListener);
 
 	/**
@@ -180,7 +183,7 @@ public interface ARSite {
 	 *            overlay response which contains the new overlay id
 	 */
 	@RequiredState(State.READY_TO_AUGMENT_IMAGES)
-	public void deleteOverlay(OverlayResponse overlay, ARListener<Boolean> listener,
+	public CancellationToken deleteOverlay(OverlayResponse overlay, ARListener<Boolean> listener,
 			ARErrorListener onErrorListener);
 
 	/**
@@ -192,7 +195,7 @@ public interface ARSite {
 	 *            a callback to get the augmented data when the call is complete
 	 */
 	@RequiredState(State.READY_TO_AUGMENT_IMAGES)
-	public void augmentImage(InputStream image,
+	public CancellationToken augmentImage(InputStream image,
 			ARListener<AugmentedData> listener, ARErrorListener onErrorListener);
 
 	/**
@@ -202,7 +205,7 @@ public interface ARSite {
 	 *            callback to be used when the call completes providing a
 	 *            boolean indicating success or failure
 	 */
-	public void delete(ARListener<Boolean> listener, ARErrorListener onErrorListener);
+	public CancellationToken delete(ARListener<Boolean> listener, ARErrorListener onErrorListener);
 
 	/**
 	 * Synchronously add a base image. Throws an ARException if the state is not
@@ -270,7 +273,9 @@ public interface ARSite {
 	public Boolean deleteOverlay(OverlayResponse overlay);
 
 	/**
-	 * Synchronously augment an image
+	 * Synchronously augment an image. Waits for the result for as long as the
+	 * site's AugmentResultPoller allows, which is forever unless setTimeout
+	 * was called on it.
 	 * 
 	 * @param image
 	 *            an inputstream containing the image
@@ -279,6 +284,46 @@ public interface ARSite {
 	@RequiredState(State.READY_TO_AUGMENT_IMAGES)
 	public AugmentedData augmentImage(InputStream image);
 
+	/**
+	 * Synchronously upload an image to be augmented, without waiting for the
+	 * result. Throws an ARException if the state is not
+	 * READY_TO_AUGMENT_IMAGES
+	 * 
+	 * @param image
+	 *            an inputstream containing the image
+	 * @return the id of the uploaded image, used to get the result
+	 */
+	@RequiredState(State.READY_TO_AUGMENT_IMAGES)
+	public String startImageAugment(InputStream image);
+
+	/**
+	 * Polls for the result of an augment started with startImageAugment,
+	 * without holding a thread between polls
+	 * 
+	 * @param imgId
+	 *            the id returned by startImageAugment
+	 * @return a future completed with the augmented data, or with an
+	 *         ARException if the AugmentResultPoller's timeout passes first.
+	 *         Cancelling it stops the polling.
+	 */
+	public ARFuture<AugmentedData> pollAugmentResult(String imgId);
+
+	/**
+	 * Starts a session for augmenting a live stream of camera frames. At most
+	 * maxInFlight frames are augmented at once and only the newest waiting
+	 * frame is kept.
+	 * 
+	 * @param maxInFlight
+	 *            the most frames augmented at once, for example
+	 *            AugmentSession.DEFAULT_MAX_IN_FLIGHT
+	 * @param listener
+	 *            a callback to get the augmented data of each frame
+	 * @return the session. Close it when the camera stops.
+	 */
+	@RequiredState(State.READY_TO_AUGMENT_IMAGES)
+	public AugmentSession startAugmentSession(int maxInFlight,
+			ARListener<AugmentedData> listener, ARErrorListener onErrorListener);
+
 	/**
 	 * Synchronously delete the site
 	 */
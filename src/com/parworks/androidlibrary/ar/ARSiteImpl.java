@@ -21,7 +21,9 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.InputStreamBody;
 import org.apache.http.entity.mime.content.StringBody;
 
@@ -43,9 +45,14 @@ import com.parworks.androidlibrary.response.SiteInfo;
 import com.parworks.androidlibrary.response.SiteInfo.BaseImageState;
 import com.parworks.androidlibrary.response.SiteInfo.OverlayState;
 import com.parworks.androidlibrary.response.SiteInfoSummary;
+import com.parworks.androidlibrary.utils.FloatScanner;
+import com.parworks.androidlibrary.utils.CallbackDispatcher;
 import com.parworks.androidlibrary.utils.GenericAsyncTask;
 import com.parworks.androidlibrary.utils.GenericAsyncTask.GenericCallback;
 import com.parworks.androidlibrary.utils.HttpUtils;
+import com.parworks.androidlibrary.utils.ImagePreprocessor;
+import com.parworks.androidlibrary.utils.RequestScheduler;
+import com.parworks.androidlibrary.utils.SpooledImage;
 
 public class ARSiteImpl implements ARSite {
 
@@ -56,6 +63,15 @@ public class ARSiteImpl implements ARSite {
 
 	private static final int REQUIRED_NUMBER_OF_BASE_IMAGES = 1;
 
+	private SiteStateCache mStateCache = new SiteStateCache();
+	private boolean mOptimisticStateChecks;
+	private boolean mRecheckStateOnFailure;
+	private AugmentResultPoller mResultPoller = AugmentResultPoller.getDefault();
+	private ImagePreprocessor mImagePreprocessor;
+	private AugmentResultCache mResultCache;
+	private volatile FrameSimilarityGate mSimilarityGate;
+	private CallbackDispatcher mCallbackDispatcher;
+
 	public ARSiteImpl(String siteId, String apiKey, String time,
 			String signature) {
 		mId = siteId;
@@ -64,8 +80,110 @@ public class ARSiteImpl implements ARSite {
 		mTime = time;
 	}
 
+	/**
+	 * Sets the cache used to avoid fetching the site state before every
+	 * mutation and augment. ARSites shares one cache between all its sites.
+	 */
+	public void setStateCache(SiteStateCache stateCache) {
+		mStateCache = stateCache;
+	}
+
+	public SiteStateCache getStateCache() {
+		return mStateCache;
+	}
+
+	/**
+	 * In optimistic mode the RequiredState of a method is not checked before
+	 * the request is sent. If the server rejects the request an ARException
+	 * state error is thrown instead.
+	 * 
+	 * @param optimistic
+	 *            true to skip the state check before requests
+	 * @param recheckOnFailure
+	 *            true to get the site state after a rejected request, so the
+	 *            error reports the actual state
+	 */
+	public void setOptimisticStateChecks(boolean optimistic,
+			boolean recheckOnFailure) {
+		mOptimisticStateChecks = optimistic;
+		mRecheckStateOnFailure = recheckOnFailure;
+	}
+
+	public boolean isOptimisticStateChecks() {
+		return mOptimisticStateChecks;
+	}
+
+	/**
+	 * Sets the poller that waits for augment results. By default all sites
+	 * share AugmentResultPoller.getDefault().
+	 */
+	public void setAugmentResultPoller(AugmentResultPoller resultPoller) {
+		mResultPoller = resultPoller;
+	}
+
+	public AugmentResultPoller getAugmentResultPoller() {
+		return mResultPoller;
+	}
+
+	/**
+	 * Sets how images are shrunk before they are uploaded for augmentation.
+	 * By default they are uploaded as they are.
+	 * 
+	 * @param imagePreprocessor
+	 *            the preprocessor, or null to upload images unchanged
+	 */
+	public void setImagePreprocessor(ImagePreprocessor imagePreprocessor) {
+		mImagePreprocessor = imagePreprocessor;
+	}
+
+	public ImagePreprocessor getImagePreprocessor() {
+		return mImagePreprocessor;
+	}
+
+	/**
+	 * Sets the cache that augmentImage looks images up in before uploading
+	 * them, or null to upload every image. By default there is none.
+	 */
+	public void setAugmentResultCache(AugmentResultCache resultCache) {
+		mResultCache = resultCache;
+	}
+
+	public AugmentResultCache getAugmentResultCache() {
+		return mResultCache;
+	}
+
+	/**
+	 * Sets the gate that lets augmentImage reuse the result of the last image
+	 * it uploaded when the next one looks the same, for example camera frames
+	 * augmented one at a time. By default there is none. An AugmentSession
+	 * has its own gate, set with AugmentSession.setSimilarityGate.
+	 */
+	public void setSimilarityGate(FrameSimilarityGate gate) {
+		mSimilarityGate = gate;
+	}
+
+	public FrameSimilarityGate getSimilarityGate() {
+		return mSimilarityGate;
+	}
+
+	/**
+	 * Sets the thread the listeners of this site's asynchronous calls are
+	 * called on. By default it is the main thread.
+	 * 
+	 * @param callbackDispatcher
+	 *            the dispatcher, for example CallbackDispatcher.direct() for
+	 *            background work, or null for the default
+	 */
+	public void setCallbackDispatcher(CallbackDispatcher callbackDispatcher) {
+		mCallbackDispatcher = callbackDispatcher;
+	}
+
+	public CallbackDispatcher getCallbackDispatcher() {
+		return mCallbackDispatcher;
+	}
+
 	@Override
-	public void getBaseImages(final ARListener<List<BaseImageInfo>> listener,
+	public CancellationToken getBaseImages(final ARListener<List<BaseImageInfo>> listener,
 			final ARErrorListener onErrorListener) {
 		
 		GenericCallback<List<BaseImageInfo>> genericCallback = 
@@ -90,11 +208,13 @@ public class ARSiteImpl implements ARSite {
 		
 		GenericAsyncTask<List<BaseImageInfo>> asyncTask = 
 				new GenericAsyncTask<List<BaseImageInfo>>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
-	public void getSiteInfo(final ARListener<SiteInfo> listener,
+	public CancellationToken getSiteInfo(final ARListener<SiteInfo> listener,
 			final ARErrorListener onErrorListener) {
 		GenericCallback<SiteInfo> genericCallback = 
 				new GenericCallback<SiteInfo>() {
@@ -118,11 +238,13 @@ public class ARSiteImpl implements ARSite {
 		
 		GenericAsyncTask<SiteInfo> asyncTask = 
 				new GenericAsyncTask<SiteInfo>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
-	public void addBaseImage(final String filename, final InputStream image,
+	public CancellationToken addBaseImage(final String filename, final InputStream image,
 			final ARListener<BaseImage> listener, final ARErrorListener onErrorListener) {
 		GenericCallback<BaseImage> genericCallback = 
 				new GenericCallback<BaseImage>() {
@@ -146,11 +268,13 @@ public class ARSiteImpl implements ARSite {
 		
 		GenericAsyncTask<BaseImage> asyncTask = 
 				new GenericAsyncTask<BaseImage>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
-	public void processBaseImages(final BaseImageProcessingProfile profile, 
+	public CancellationToken processBaseImages(final BaseImageProcessingProfile profile, 
 			final ARListener<State> listener, final ARErrorListener onErrorListener) {
 		
 		GenericCallback<State> genericCallback = new GenericCallback<State>() {
@@ -173,11 +297,13 @@ public class ARSiteImpl implements ARSite {
 		};
 		
 		GenericAsyncTask<State> asyncTask = new GenericAsyncTask<State>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
-	public void getState(final ARListener<State> listener, final ARErrorListener onErrorListener) {
+	public CancellationToken getState(final ARListener<State> listener, final ARErrorListener onErrorListener) {
 		GenericCallback<State> genericCallback = new GenericCallback<State>() {
 			@Override
 			public State toCall() {
@@ -198,11 +324,13 @@ public class ARSiteImpl implements ARSite {
 		};
 		
 		GenericAsyncTask<State> asyncTask = new GenericAsyncTask<State>(genericCallback);
-		asyncTask.execute();		
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
+		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
-	public void addOverlay(final Overlay overlay,
+	public CancellationToken addOverlay(final Overlay overlay,
 			final ARListener<OverlayResponse> listener, final ARErrorListener onErrorListener) {
 		GenericCallback<OverlayResponse> genericCallback = new GenericCallback<OverlayResponse>() {
 			@Override
@@ -225,11 +353,13 @@ public class ARSiteImpl implements ARSite {
 		};
 		
 		GenericAsyncTask<OverlayResponse> asyncTask = new GenericAsyncTask<OverlayResponse>(genericCallback);
-		asyncTask.execute();		
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
+		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
-	public void updateOverlay(final OverlayResponse overlayToUpdate, final Overlay newOverlay,
+	public CancellationToken updateOverlay(final OverlayResponse overlayToUpdate, final Overlay newOverlay,
 			final ARListener<OverlayResponse> listener, final ARErrorListener onErrorListener) {
 		GenericCallback<OverlayResponse> genericCallback = new GenericCallback<OverlayResponse>() {
 			@Override
@@ -251,11 +381,13 @@ public class ARSiteImpl implements ARSite {
 		};
 		
 		GenericAsyncTask<OverlayResponse> asyncTask = new GenericAsyncTask<OverlayResponse>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
-	public void deleteOverlay(final OverlayResponse overlay, final ARListener<Boolean> listener,
+	public CancellationToken deleteOverlay(final OverlayResponse overlay, final ARListener<Boolean> listener,
 			final ARErrorListener onErrorListener) {
 		GenericCallback<Boolean> genericCallback = new GenericCallback<Boolean>() {
 			@Override
@@ -277,21 +409,52 @@ public class ARSiteImpl implements ARSite {
 		};
 		
 		GenericAsyncTask<Boolean> asyncTask = new GenericAsyncTask<Boolean>(genericCallback);
-		asyncTask.execute();		
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
+		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
-	public void augmentImage(final InputStream image,
+	public CancellationToken augmentImage(final InputStream image,
 			final ARListener<AugmentedData> listener, final ARErrorListener onErrorListener) {
-		GenericCallback<AugmentedData> genericCallback = new GenericCallback<AugmentedData>() {
+		// only the upload runs in the task. The result is polled for without
+		// holding a thread and handed to the callback dispatcher.
+		final CancellationToken token = new CancellationToken();
+		final CallbackDispatcher callbacks = CallbackDispatcher
+				.resolve(mCallbackDispatcher);
+		GenericCallback<ARFuture<AugmentedData>> genericCallback = new GenericCallback<ARFuture<AugmentedData>>() {
 			@Override
-			public AugmentedData toCall() {
-				return augmentImage(image);
+			public ARFuture<AugmentedData> toCall() {
+				return startAugment(image);
 			}
 
 			@Override
-			public void onComplete(AugmentedData result) {
-				listener.handleResponse(result);				
+			public void onComplete(ARFuture<AugmentedData> augment) {
+				augment.addListener(new ARListener<AugmentedData>() {
+					@Override
+					public void handleResponse(final AugmentedData result) {
+						callbacks.dispatch(new Runnable() {
+							@Override
+							public void run() {
+								if (!token.isCancelled()) {
+									listener.handleResponse(result);
+								}
+							}
+						});
+					}
+				}, new ARErrorListener() {
+					@Override
+					public void handleError(final Exception error) {
+						callbacks.dispatch(new Runnable() {
+							@Override
+							public void run() {
+								if (!token.isCancelled()) {
+									onError(error);
+								}
+							}
+						});
+					}
+				});
 			}
 
 			@Override
@@ -302,13 +465,15 @@ public class ARSiteImpl implements ARSite {
 			}			
 		};
 		
-		GenericAsyncTask<AugmentedData> asyncTask = new GenericAsyncTask<AugmentedData>(genericCallback);
+		GenericAsyncTask<ARFuture<AugmentedData>> asyncTask = new GenericAsyncTask<ARFuture<AugmentedData>>(genericCallback, token);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 
 	@Override
-	public void delete(final ARListener<Boolean> listener, final ARErrorListener onErrorListener) {
+	public CancellationToken delete(final ARListener<Boolean> listener, final ARErrorListener onErrorListener) {
 		
 		GenericCallback<Boolean> genericCallback = new GenericCallback<Boolean>() {
 			@Override
@@ -330,7 +495,9 @@ public class ARSiteImpl implements ARSite {
 		};
 		
 		GenericAsyncTask<Boolean> asyncTask = new GenericAsyncTask<Boolean>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	/*
@@ -344,8 +511,9 @@ public class ARSiteImpl implements ARSite {
 //		handleStateSync(mId, State.NEEDS_MORE_BASE_IMAGES,
 //				State.NEEDS_BASE_IMAGE_PROCESSING);
 		
-		// make httputils
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		// make httputils. Base images are large, so they wait for augments.
+		HttpUtils httpUtils = newHttpUtils();
+		httpUtils.setPriority(RequestScheduler.Priority.BULK);
 
 		// make query string
 		Map<String, String> params = new HashMap<String, String>();
@@ -364,8 +532,8 @@ public class ARSiteImpl implements ARSite {
 						+ HttpUtils.ADD_BASE_IMAGE_PATH, imageEntity, params);
 
 		// handle status code
-		HttpUtils.handleStatusCode(serverResponse.getStatusLine()
-				.getStatusCode());
+		handleMutationStatusCode(serverResponse, State.NEEDS_MORE_BASE_IMAGES,
+				State.NEEDS_BASE_IMAGE_PROCESSING);
 
 		// parse response
 		ARResponseHandler responseHandler = new ARResponseHandlerImpl();
@@ -374,10 +542,21 @@ public class ARSiteImpl implements ARSite {
 
 		// return baseimageinfo
 		if (addBaseImageResponse.getSuccess() == true) {
+			invalidateAugmentResults();
+			State cachedState = mStateCache.get(mId);
+			if (cachedState == State.NEEDS_MORE_BASE_IMAGES
+					|| cachedState == State.NEEDS_BASE_IMAGE_PROCESSING) {
+				// REQUIRED_NUMBER_OF_BASE_IMAGES is one
+				mStateCache.put(mId, State.NEEDS_BASE_IMAGE_PROCESSING);
+			} else {
+				mStateCache.invalidate(mId);
+			}
 			return new BaseImage(addBaseImageResponse.getId());
 		} else {
-			throw new ARException(
-					"Successfully communicated with the server but failed to add the base image. Perhaps the site does not exist, or there is a problem with the image.");
+			throw rejected(new ARException(
+					"Successfully communicated with the server but failed to add the base image. Perhaps the site does not exist, or there is a problem with the image."),
+					State.NEEDS_MORE_BASE_IMAGES,
+					State.NEEDS_BASE_IMAGE_PROCESSING);
 		}
 
 	}
@@ -385,7 +564,7 @@ public class ARSiteImpl implements ARSite {
 	@Override
 	public State processBaseImages(BaseImageProcessingProfile profile) {
 		handleStateSync(mId, State.NEEDS_BASE_IMAGE_PROCESSING);
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpUtils httpUtils = newHttpUtils();
 
 		Map<String, String> params = new HashMap<String, String>();
 		params.put("site", mId);
@@ -397,8 +576,7 @@ public class ARSiteImpl implements ARSite {
 				.doGet(HttpUtils.PARWORKS_API_BASE_URL
 						+ HttpUtils.INITIATE_BASE_IMAGE_PROCESSING_PATH, params);
 
-		HttpUtils.handleStatusCode(serverResponse.getStatusLine()
-				.getStatusCode());
+		handleMutationStatusCode(serverResponse, State.NEEDS_BASE_IMAGE_PROCESSING, null);
 
 		ARResponseHandler responseHandler = new ARResponseHandlerImpl();
 		InitiateBaseImageProcessingResponse initProcessingResponse = responseHandler
@@ -406,22 +584,95 @@ public class ARSiteImpl implements ARSite {
 						InitiateBaseImageProcessingResponse.class);
 
 		if (initProcessingResponse.getSuccess() == true) {
+			// the server processes the images in the background
+			mStateCache.put(mId, State.PROCESSING);
+			invalidateAugmentResults();
 			return State.NEEDS_OVERLAYS;
 		} else {
-			throw new ARException(
-					"Successfully communicated with the server but failed to process the base images. Perhaps the site was deleted.");
+			throw rejected(new ARException(
+					"Successfully communicated with the server but failed to process the base images. Perhaps the site was deleted."),
+					State.NEEDS_BASE_IMAGE_PROCESSING, null);
 		}
 	}
 
+	/**
+	 * Gets the state from the site info summary, which is much smaller than
+	 * the full site info. Falls back to the full site info only when the
+	 * server has no summary endpoint or the summary does not report a
+	 * recognizable site state. Any other failure of the summary request is
+	 * thrown.
+	 */
 	@Override
 	public State getState() {
 
-		SiteInfo siteInfo = getSiteInfo();
-		return determineSiteState(siteInfo.getBimState(),
-				siteInfo.getSiteState(), siteInfo.getTotalImages());
+		State state = null;
+		HttpResponse serverResponse = requestSiteInfoSummary();
+		int statusCode = serverResponse.getStatusLine().getStatusCode();
+		if (statusCode != HttpStatus.SC_NOT_FOUND) {
+			// a 404 means the server is too old to provide the summary
+			HttpUtils.handleStatusCode(statusCode);
+			state = determineSiteState(readSiteInfoSummary(serverResponse));
+		}
+		if (state == null) {
+			SiteInfo siteInfo = getSiteInfo();
+			state = determineSiteState(siteInfo.getBimState(),
+					siteInfo.getSiteState(), siteInfo.getTotalImages());
+		}
+		mStateCache.put(mId, state);
+		return state;
 
 	}
 
+	/**
+	 * Maps the site state reported by the site info summary into a State.
+	 * The summary does not report the overlay processing state, so a site
+	 * whose base images are processed and which has overlays is taken to be
+	 * READY_TO_AUGMENT_IMAGES even while its overlays are still processing.
+	 * Augmenting such a site is rejected by the server, which drops the
+	 * cached state.
+	 * 
+	 * @return the state, or null if the summary does not report a
+	 *         recognizable site state
+	 */
+	public static State determineSiteState(SiteInfoSummary summary) {
+		if ((summary == null) || (summary.getSiteState() == null)) {
+			return null;
+		}
+		String siteState = summary.getSiteState().trim().toUpperCase()
+				.replace('-', '_').replace(' ', '_');
+
+		for (State state : State.values()) {
+			if (state.name().equals(siteState)) {
+				return state;
+			}
+		}
+
+		BaseImageState baseImageState;
+		try {
+			baseImageState = BaseImageState.valueOf(siteState);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		switch (baseImageState) {
+		case PROCESSING:
+			return State.PROCESSING;
+		case NOT_PROCESSED:
+		case PROCESSING_FAILED:
+			if (summary.getNumImages() >= REQUIRED_NUMBER_OF_BASE_IMAGES) {
+				return State.NEEDS_BASE_IMAGE_PROCESSING;
+			} else {
+				return State.NEEDS_MORE_BASE_IMAGES;
+			}
+		case PROCESSED:
+			if (summary.getNumOverlays() == 0) {
+				return State.NEEDS_OVERLAYS;
+			}
+			return State.READY_TO_AUGMENT_IMAGES;
+		default:
+			return null;
+		}
+	}
+
 	public static State determineSiteState(OverlayState bimState,
 			BaseImageState siteState, int baseImageTotal) {
 		OverlayState overlayState = bimState;
@@ -479,22 +730,33 @@ public class ARSiteImpl implements ARSite {
 			}
 		}
 
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpUtils httpUtils = newHttpUtils();
 		HttpResponse serverResponse = httpUtils.doPost(
 				HttpUtils.PARWORKS_API_BASE_URL + HttpUtils.ADD_OVERLAY_PATH,
 				entity, params);
-		HttpUtils.handleStatusCode(serverResponse.getStatusLine()
-				.getStatusCode());
+		handleMutationStatusCode(serverResponse, State.NEEDS_OVERLAYS,
+				State.READY_TO_AUGMENT_IMAGES);
 
 		ARResponseHandler responseHandler = new ARResponseHandlerImpl();
 		AddSaveOverlayResponse addOverlayResponse = responseHandler
 				.handleResponse(serverResponse, AddSaveOverlayResponse.class);
 
 		if (addOverlayResponse.getSuccess() == true) {
+			State cachedState = mStateCache.get(mId);
+			if (cachedState == State.NEEDS_OVERLAYS
+					|| cachedState == State.READY_TO_AUGMENT_IMAGES) {
+				// a site with an overlay is ready to augment images
+				mStateCache.put(mId, State.READY_TO_AUGMENT_IMAGES);
+			} else {
+				mStateCache.invalidate(mId);
+			}
+			invalidateAugmentResults();
 			return new OverlayResponse(addOverlayResponse.getId());
 		} else {
-			throw new ARException(
-					"Successfully communicated with the server, but failed to add the overlay. Perhaps the site no longer exists, or there was a problem with the overlay.");
+			throw rejected(new ARException(
+					"Successfully communicated with the server, but failed to add the overlay. Perhaps the site no longer exists, or there was a problem with the overlay."),
+					State.NEEDS_OVERLAYS,
+					State.READY_TO_AUGMENT_IMAGES);
 		}
 	}
 
@@ -521,23 +783,26 @@ public class ARSiteImpl implements ARSite {
 			}
 		}
 
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpUtils httpUtils = newHttpUtils();
 		HttpResponse serverResponse = httpUtils.doPost(
 				HttpUtils.PARWORKS_API_BASE_URL + HttpUtils.SAVE_OVERLAY_PATH,
 				entity, params);
 
-		HttpUtils.handleStatusCode(serverResponse.getStatusLine()
-				.getStatusCode());
+		handleMutationStatusCode(serverResponse, State.READY_TO_AUGMENT_IMAGES, null);
 
 		ARResponseHandler responseHandler = new ARResponseHandlerImpl();
 		AddSaveOverlayResponse saveOverlayResponse = responseHandler
 				.handleResponse(serverResponse, AddSaveOverlayResponse.class);
 
 		if (saveOverlayResponse.getSuccess() == true) {
+			// the site still has the overlay
+			mStateCache.put(mId, State.READY_TO_AUGMENT_IMAGES);
+			invalidateAugmentResults();
 			return new OverlayResponse(saveOverlayResponse.getId());
 		} else {
-			throw new ARException(
-					"Successfully communicated with the server, but failed to update the overlay. Perhaps the site no longer exists, or there was a problem with the overlay.");
+			throw rejected(new ARException(
+					"Successfully communicated with the server, but failed to update the overlay. Perhaps the site no longer exists, or there was a problem with the overlay."),
+					State.READY_TO_AUGMENT_IMAGES, null);
 		}
 	}
 
@@ -549,27 +814,54 @@ public class ARSiteImpl implements ARSite {
 		params.put("site", mId);
 		params.put("id", overlay.getOverlayId());
 
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpUtils httpUtils = newHttpUtils();
 		HttpResponse serverResponse = httpUtils
 				.doPost(HttpUtils.PARWORKS_API_BASE_URL
 						+ HttpUtils.REMOVE_OVERLAY_PATH, params);
 
-		HttpUtils.handleStatusCode(serverResponse.getStatusLine()
-				.getStatusCode());
+		handleMutationStatusCode(serverResponse, State.READY_TO_AUGMENT_IMAGES, null);
 
 		ARResponseHandler responseHandler = new ARResponseHandlerImpl();
 		BasicResponse deleteOverlayResponse = responseHandler.handleResponse(
 				serverResponse, BasicResponse.class);
 
 		if (deleteOverlayResponse.getSuccess() == false) {
-			throw new ARException(
-					"Successfully communicated with the server, but the overlay was not deleted. Perhaps it does not exist.");
+			throw rejected(new ARException(
+					"Successfully communicated with the server, but the overlay was not deleted. Perhaps it does not exist."),
+					State.READY_TO_AUGMENT_IMAGES, null);
 		} else {
+			// the site needs overlays again if this was its last one
+			mStateCache.invalidate(mId);
+			invalidateAugmentResults();
 			return true;
 		}
 
 	}
 
+	/**
+	 * @return an HttpUtils whose requests are scheduled as this site's
+	 */
+	private HttpUtils newHttpUtils() {
+		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		httpUtils.setSiteId(mId);
+		return httpUtils;
+	}
+
+	/**
+	 * Drops cached augment results, which no longer match the site's base
+	 * images or overlays.
+	 */
+	private void invalidateAugmentResults() {
+		if (mResultCache != null) {
+			mResultCache.invalidateSite(mId);
+		}
+		FrameSimilarityGate gate = mSimilarityGate;
+		if (gate != null) {
+			gate.reset();
+		}
+	}
+
+	@Override
 	public String startImageAugment(InputStream image) {
 		handleStateSync(mId, State.READY_TO_AUGMENT_IMAGES);
 
@@ -577,25 +869,38 @@ public class ARSiteImpl implements ARSite {
 		params.put("site", mId);
 
 		MultipartEntity imageEntity = new MultipartEntity();
-		InputStreamBody imageInputStreamBody = new InputStreamBody(image,
-				"image");
-		imageEntity.addPart("image", imageInputStreamBody);
-
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
-		HttpResponse serverResponse = httpUtils.doPost(
-				HttpUtils.PARWORKS_API_BASE_URL + HttpUtils.AUGMENT_IMAGE_PATH,
-				imageEntity, params);
+		ContentBody imageBody;
+		ImagePreprocessor.PreparedImage preparedImage = null;
+		if (mImagePreprocessor == null) {
+			imageBody = new InputStreamBody(image, "image");
+		} else {
+			preparedImage = mImagePreprocessor.prepare(image, "image");
+			imageBody = preparedImage;
+		}
+		imageEntity.addPart("image", imageBody);
+
+		HttpUtils httpUtils = newHttpUtils();
+		HttpResponse serverResponse;
+		try {
+			serverResponse = httpUtils.doPost(
+					HttpUtils.PARWORKS_API_BASE_URL + HttpUtils.AUGMENT_IMAGE_PATH,
+					imageEntity, params);
+		} finally {
+			if (preparedImage != null) {
+				preparedImage.release();
+			}
+		}
 
-		HttpUtils.handleStatusCode(serverResponse.getStatusLine()
-				.getStatusCode());
+		handleMutationStatusCode(serverResponse, State.READY_TO_AUGMENT_IMAGES, null);
 
 		ARResponseHandler responseHandler = new ARResponseHandlerImpl();
 		AugmentImageResponse augmentImageResponse = responseHandler
 				.handleResponse(serverResponse, AugmentImageResponse.class);
 		
 		if (augmentImageResponse.getSuccess() == false) {
-			throw new ARException(
-					"Successfully communicated with the server, failed to augment the image. Perhaps the site does not exist or has no overlays.");
+			throw rejected(new ARException(
+					"Successfully communicated with the server, failed to augment the image. Perhaps the site does not exist or has no overlays."),
+					State.READY_TO_AUGMENT_IMAGES, null);
 		}
 
 		return augmentImageResponse.getImgId();
@@ -603,11 +908,32 @@ public class ARSiteImpl implements ARSite {
 	}
 
 	public AugmentedData getAugmentResult(String imgId) {
+		return getAugmentResult(imgId, 0);
+	}
+
+	/**
+	 * Gets the result of an augment, asking the server to hold the request
+	 * open until the result is ready or waitMillis passes.
+	 * 
+	 * @param waitMillis
+	 *            how long the server may hold the request. 0 returns at once.
+	 *            Servers that do not support waiting ignore it. A request
+	 *            that may wait is sent outside the shared connection limit;
+	 *            see HttpUtils.setLongPoll.
+	 * @return the augmented data, or null if it is not ready yet
+	 */
+	public AugmentedData getAugmentResult(String imgId, long waitMillis) {
 		Map<String, String> params = new HashMap<String, String>();
 		params.put("imgId", imgId);
-		params.put("site", mId);
+		if (mId != null) {
+			params.put("site", mId);
+		}
+		HttpUtils httpUtils = newHttpUtils();
+		if (waitMillis > 0) {
+			params.put("wait", Long.toString(waitMillis));
+			httpUtils.setLongPoll(true);
+		}
 
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
 		HttpResponse serverResponse = httpUtils.doGet(
 				HttpUtils.PARWORKS_API_BASE_URL
 						+ HttpUtils.AUGMENT_IMAGE_RESULT_PATH, params);
@@ -626,16 +952,83 @@ public class ARSiteImpl implements ARSite {
 		return convertAugmentResultResponse(imgId, result);
 	}
 
+	/**
+	 * Polls for the result of an augment started with startImageAugment. The
+	 * polls back off on the augment result poller's schedule and no thread is
+	 * held between them.
+	 * 
+	 * @param imgId
+	 *            the id returned by startImageAugment
+	 * @return a future completed with the augmented data, or with an error if
+	 *         polling fails or times out. Cancelling it stops the polling.
+	 */
+	@Override
+	public ARFuture<AugmentedData> pollAugmentResult(String imgId) {
+		return mResultPoller.poll(this, imgId);
+	}
+
+	@Override
+	public AugmentSession startAugmentSession(int maxInFlight,
+			ARListener<AugmentedData> listener, ARErrorListener onErrorListener) {
+		// each frame is checked by startImageAugment
+		return new AugmentSession(this, maxInFlight, listener, onErrorListener);
+	}
+
 	@Override
 	public AugmentedData augmentImage(InputStream image) {
-		handleStateSync(mId, State.READY_TO_AUGMENT_IMAGES);
-		String imageId = startImageAugment(image);
+		return startAugment(image).getResult();
+	}
+
+	/**
+	 * Uploads an image unless the similarity gate or the result cache has a
+	 * result for it, and returns the future result.
+	 */
+	private ARFuture<AugmentedData> startAugment(InputStream image) {
+		final AugmentResultCache cache = mResultCache;
+		final FrameSimilarityGate gate = mSimilarityGate;
+		if (cache == null && gate == null) {
+			// startImageAugment checks the state
+			return pollAugmentResult(startImageAugment(image));
+		}
 
-		AugmentedData augmentedImage = null;
-		while (augmentedImage == null) {
-			augmentedImage = getAugmentResult(imageId);
+		// the image is read into memory and hashed before the upload, which
+		// then sends the spooled bytes
+		final SpooledImage spooled = new SpooledImage(image);
+		final Long frameHash = gate == null ? null : FrameSimilarityGate.tryHash(
+				spooled.getBuffer(), 0, spooled.getLength());
+		if (frameHash != null) {
+			AugmentedData reused = gate.check(frameHash);
+			if (reused != null) {
+				return completed(reused);
+			}
+		}
+		if (cache != null) {
+			AugmentedData cached = cache.get(mId, spooled);
+			if (cached != null) {
+				return completed(cached);
+			}
 		}
-		return augmentedImage;
+		final long generation = cache == null ? 0 : cache.getGeneration();
+		ARFuture<AugmentedData> result = pollAugmentResult(startImageAugment(spooled
+				.newInputStream()));
+		result.addListener(new ARListener<AugmentedData>() {
+			@Override
+			public void handleResponse(AugmentedData augmented) {
+				if (cache != null) {
+					cache.put(mId, spooled, augmented, generation);
+				}
+				if (frameHash != null) {
+					gate.update(frameHash, augmented);
+				}
+			}
+		}, null);
+		return result;
+	}
+
+	private static ARFuture<AugmentedData> completed(AugmentedData result) {
+		ARFuture<AugmentedData> future = new ARFuture<AugmentedData>();
+		future.set(result);
+		return future;
 	}
 
 	@Override
@@ -644,7 +1037,7 @@ public class ARSiteImpl implements ARSite {
 		Map<String, String> params = new HashMap<String, String>();
 		params.put("site", mId);
 
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpUtils httpUtils = newHttpUtils();
 		HttpResponse serverResponse = httpUtils.doGet(
 				HttpUtils.PARWORKS_API_BASE_URL + HttpUtils.REMOVE_SITE_PATH,
 				params);
@@ -656,6 +1049,7 @@ public class ARSiteImpl implements ARSite {
 		BasicResponse deleteSiteResponse = responseHandler.handleResponse(
 				serverResponse, BasicResponse.class);
 
+		mStateCache.invalidate(mId);
 		if (deleteSiteResponse.getSuccess() == false) {
 			throw new ARException(
 					"Successfully communicated with the server, but was unable to delete the site. Perhaps the site no longer exists.");
@@ -670,7 +1064,7 @@ public class ARSiteImpl implements ARSite {
 		Map<String, String> params = new HashMap<String, String>();
 		params.put("site", mId);
 
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpUtils httpUtils = newHttpUtils();
 		HttpResponse serverResponse = httpUtils.doGet(
 				HttpUtils.PARWORKS_API_BASE_URL + HttpUtils.GET_SITE_INFO_PATH,
 				params);
@@ -699,7 +1093,7 @@ public class ARSiteImpl implements ARSite {
 		Map<String, String> params = new HashMap<String, String>();
 		params.put("site", mId);
 
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpUtils httpUtils = newHttpUtils();
 		HttpResponse serverResponse = httpUtils.doGet(
 				HttpUtils.PARWORKS_API_BASE_URL
 						+ HttpUtils.LIST_BASE_IMAGES_PATH, params);
@@ -732,8 +1126,10 @@ public class ARSiteImpl implements ARSite {
 	}
 
 	/**
-	 * Makes a call to the synchronous getState() method, then throws an
-	 * ARException if the state is not the required state
+	 * Checks the cached state of the site, and only when it is stale or not
+	 * one of the required states makes a call to the synchronous getState()
+	 * method. Throws an ARException if the state is not the required state.
+	 * Does nothing in optimistic mode.
 	 * 
 	 * @param siteId
 	 * @param firstPossibleState
@@ -741,6 +1137,15 @@ public class ARSiteImpl implements ARSite {
 	 */
 	private void handleStateSync(String siteId, final State firstPossibleState,
 			final State secondPossibleState) {
+		if (mOptimisticStateChecks) {
+			// the server rejects the request if the state is wrong
+			return;
+		}
+		State cachedState = mStateCache.get(siteId);
+		if ((cachedState != null)
+				&& ((cachedState == firstPossibleState) || (cachedState == secondPossibleState))) {
+			return;
+		}
 		State siteState = getState();
 		if ((siteState == firstPossibleState)
 				|| (siteState == secondPossibleState)) {
@@ -751,6 +1156,55 @@ public class ARSiteImpl implements ARSite {
 		}
 	}
 
+	/**
+	 * Handles the status code of a mutation or augment request that requires
+	 * the site to be in one of the given states.
+	 */
+	private void handleMutationStatusCode(HttpResponse serverResponse,
+			State firstPossibleState, State secondPossibleState) {
+		try {
+			HttpUtils.handleStatusCode(serverResponse.getStatusLine()
+					.getStatusCode());
+		} catch (ARException e) {
+			throw rejected(e, firstPossibleState, secondPossibleState);
+		}
+	}
+
+	/**
+	 * Called when the server rejects a request that requires the site to be
+	 * in one of the given states. A rejected request may mean the cached
+	 * state was wrong, so it is forgotten. In optimistic mode no state check
+	 * was made before the request, so the rejection is reported as a state
+	 * error, re-checking the actual state first if enabled.
+	 * 
+	 * @return the exception to throw
+	 */
+	private ARException rejected(ARException error,
+			State firstPossibleState, State secondPossibleState) {
+		mStateCache.invalidate(mId);
+		if (!mOptimisticStateChecks) {
+			return error;
+		}
+		if (!mRecheckStateOnFailure) {
+			return new ARException(
+					"The server rejected the request, possibly because of the site state. State must be "
+							+ firstPossibleState + " or " + secondPossibleState,
+					error);
+		}
+		State siteState;
+		try {
+			siteState = getState();
+		} catch (ARException e) {
+			return error;
+		}
+		if ((siteState == firstPossibleState)
+				|| (siteState == secondPossibleState)) {
+			return error;
+		}
+		return new ARException("State was " + siteState + ". State must be "
+				+ firstPossibleState + " or " + secondPossibleState, error);
+	}
+
 	@Override
 	public String getSiteId() {
 		return mId;
@@ -759,10 +1213,29 @@ public class ARSiteImpl implements ARSite {
 	private AugmentedData convertAugmentResultResponse(String imgId,
 			AugmentImageResultResponse result) {
 		List<OverlayAugmentResponse> overlayResponses = result.getOverlays();
-		List<Overlay> overlays = new ArrayList<Overlay>();
+		List<Overlay> overlays = new ArrayList<Overlay>(overlayResponses.size());
 
+		// all of the result's vertices share one packed geometry
+		int totalValues = 0;
 		for (OverlayAugmentResponse overlayResponse : overlayResponses) {
-			overlays.add(makeOverlay(overlayResponse, imgId));
+			totalValues += FloatScanner.countValues(overlayResponse.getVertices());
+		}
+		float[] vertexBuffer = new float[totalValues];
+		int[] overlayStarts = new int[overlayResponses.size() + 1];
+
+		int offset = 0;
+		for (int i = 0; i < overlayResponses.size(); i++) {
+			offset += parseVertices(overlayResponses.get(i).getVertices(),
+					vertexBuffer, offset);
+			overlayStarts[i + 1] = offset / OverlayImpl.FLOATS_PER_VERTEX;
+		}
+		PackedGeometry geometry = PackedGeometry.wrap(vertexBuffer,
+				OverlayImpl.FLOATS_PER_VERTEX, overlayStarts);
+
+		for (int i = 0; i < overlayResponses.size(); i++) {
+			OverlayAugmentResponse overlayResponse = overlayResponses.get(i);
+			overlays.add(new OverlayImpl(imgId, overlayResponse.getName(),
+					overlayResponse.getDescription(), geometry, i));
 		}
 
 		AugmentedData augmentedData = new AugmentedData(result.getFov(),
@@ -771,41 +1244,37 @@ public class ARSiteImpl implements ARSite {
 		return augmentedData;
 	}
 
-	private Overlay makeOverlay(OverlayAugmentResponse overlayResponse,
-			String imgId) {
-		Overlay overlay = new OverlayImpl(imgId, overlayResponse.getName(),
-				overlayResponse.getDescription(),
-				parseVertices(overlayResponse.getVertices()));
-		return overlay;
-
-	}
-
-	private List<Vertex> parseVertices(String serverOutput) {
-		String[] points = serverOutput.split(",");
-
-		List<Vertex> vertices = new ArrayList<Vertex>();
-		for (int i = 0; i < points.length; i += 3) {
-			float xCoord = Float.parseFloat(points[i]);
-			float yCoord = Float.parseFloat(points[i + 1]);
-			float zCoord = Float.parseFloat(points[i + 2]);
-			vertices.add(new Vertex(xCoord, yCoord, zCoord));
+	private int parseVertices(String serverOutput, float[] vertexBuffer,
+			int offset) {
+		int values = FloatScanner.scan(serverOutput, vertexBuffer, offset);
+		if (values % OverlayImpl.FLOATS_PER_VERTEX != 0) {
+			throw new ARException(
+					"The server returned overlay vertices that were not x,y,z triples: "
+							+ serverOutput);
 		}
-		return vertices;
+		return values;
 	}
 
 	@Override
 	public SiteInfoSummary getSiteInfoSummary() {
-		Map<String, String> params = new HashMap<String, String>();
-		params.put("site", mId);
-
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
-		HttpResponse serverResponse = httpUtils.doGet(
-				HttpUtils.PARWORKS_API_BASE_URL
-						+ HttpUtils.GET_SITE_INFO_SUMMARY_PATH, params);
+		HttpResponse serverResponse = requestSiteInfoSummary();
 
 		HttpUtils.handleStatusCode(serverResponse.getStatusLine()
 				.getStatusCode());
 
+		return readSiteInfoSummary(serverResponse);
+	}
+
+	private HttpResponse requestSiteInfoSummary() {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("site", mId);
+
+		HttpUtils httpUtils = newHttpUtils();
+		return httpUtils.doGet(HttpUtils.PARWORKS_API_BASE_URL
+				+ HttpUtils.GET_SITE_INFO_SUMMARY_PATH, params);
+	}
+
+	private static SiteInfoSummary readSiteInfoSummary(HttpResponse serverResponse) {
 		ARResponseHandler responseHandler = new ARResponseHandlerImpl();
 		SiteInfoSummary siteInfoSummary = responseHandler
 				.handleResponse(serverResponse, SiteInfoSummary.class);
@@ -819,7 +1288,7 @@ public class ARSiteImpl implements ARSite {
 	}
 	
 	@Override
-	public void getSiteInfoSummary(final ARListener<SiteInfoSummary> listener, final ARErrorListener onErrorListener) {
+	public CancellationToken getSiteInfoSummary(final ARListener<SiteInfoSummary> listener, final ARErrorListener onErrorListener) {
 
 		GenericCallback<SiteInfoSummary> genericCallback = new GenericCallback<SiteInfoSummary>() {
 			@Override
@@ -841,7 +1310,9 @@ public class ARSiteImpl implements ARSite {
 		};
 		
 		GenericAsyncTask<SiteInfoSummary> asyncTask = new GenericAsyncTask<SiteInfoSummary>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	@Override
@@ -849,7 +1320,7 @@ public class ARSiteImpl implements ARSite {
 		Map<String, String> params = new HashMap<String, String>();
 		params.put("site", mId);
 
-		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpUtils httpUtils = newHttpUtils();
 		HttpResponse serverResponse = httpUtils.doGet(
 				HttpUtils.PARWORKS_API_BASE_URL
 						+ HttpUtils.GET_SITE_OVERLAYS_PATH, params);
@@ -862,6 +1333,7 @@ public class ARSiteImpl implements ARSite {
 				.handleResponse(serverResponse, GetSiteOverlaysResponse.class);
 
 		if (getSiteOverlaysResponse.getSuccess()) {
+			// already packed into one geometry by OverlayListDeserializer
 			return getSiteOverlaysResponse.getOverlays();
 		} else {
 			throw new ARException(
@@ -870,7 +1342,7 @@ public class ARSiteImpl implements ARSite {
 	}
 
 	@Override
-	public void getSiteOverlays(final String siteId,
+	public CancellationToken getSiteOverlays(final String siteId,
 			final ARListener<List<ImageOverlayInfo>> listener, final ARErrorListener onErrorListener) {	
 		
 		GenericCallback<List<ImageOverlayInfo>> genericCallback = new GenericCallback<List<ImageOverlayInfo>>() {
@@ -893,7 +1365,9 @@ public class ARSiteImpl implements ARSite {
 		};
 		
 		GenericAsyncTask<List<ImageOverlayInfo>> asyncTask = new GenericAsyncTask<List<ImageOverlayInfo>>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 }
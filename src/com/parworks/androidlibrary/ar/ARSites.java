@@ -13,29 +13,39 @@
  */
 package com.parworks.androidlibrary.ar;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.http.HttpResponse;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
 
 import com.parworks.androidlibrary.response.ARResponseHandler;
 import com.parworks.androidlibrary.response.ARResponseHandlerImpl;
+import com.parworks.androidlibrary.response.AugmentImageGeoResponse;
 import com.parworks.androidlibrary.response.BasicResponse;
 import com.parworks.androidlibrary.response.GetSiteInfoResponse;
 import com.parworks.androidlibrary.response.ListUserSitesResponse;
 import com.parworks.androidlibrary.response.NearbySitesResponse;
 import com.parworks.androidlibrary.response.SiteInfo;
+import com.parworks.androidlibrary.utils.CallbackDispatcher;
 import com.parworks.androidlibrary.utils.GenericAsyncTask;
 import com.parworks.androidlibrary.utils.GenericAsyncTask.GenericCallback;
 import com.parworks.androidlibrary.utils.HMacShaPasswordEncoder;
 import com.parworks.androidlibrary.utils.HttpUtils;
+import com.parworks.androidlibrary.utils.ImagePreprocessor;
 
 /**
  * Used for Synchronously and Asynchronously finding, managing, and creating
  * ARSites
  * 
+ * The asynchronous methods return a CancellationToken. Cancelling it aborts
+ * the request and no callback is called.
+ * 
  * @author Jules White, Adam Hickey, Yu Sun
  * 
  */
@@ -44,6 +54,15 @@ public class ARSites {
 	private String mApiKey;
 	private String mSignature;
 	private String mTime;
+	private final SiteStateCache mStateCache = new SiteStateCache();
+	private boolean mOptimisticStateChecks;
+	private boolean mRecheckStateOnFailure;
+	private SiteStateWatcher mStateWatcher;
+	private ImagePreprocessor mImagePreprocessor;
+	private AugmentResultCache mResultCache;
+	private CallbackDispatcher mCallbackDispatcher;
+	private AugmentFanOut mFanOut;
+	private SiteRanker mSiteRanker;
 
 	public ARSites(String apiKey, String secretKey) {
 
@@ -53,6 +72,114 @@ public class ARSites {
 		mTime = "" + System.currentTimeMillis();
 		mSignature = encoder.encodePassword(secretKey, mTime);
 	}
+	
+	/**
+	 * Returns the site state cache shared by every ARSite this object
+	 * creates. Use setTtlMillis on it to change how long a state is trusted
+	 * before the state checks go back to the server.
+	 */
+	public SiteStateCache getStateCache() {
+		return mStateCache;
+	}
+	
+	/**
+	 * Turns optimistic mode on or off for the ARSites obtained from this
+	 * object afterwards. In optimistic mode methods annotated with
+	 * RequiredState send their request without checking the site state
+	 * first, saving a round trip. If the server rejects the request an
+	 * ARException state error is thrown, as it would have been by the check.
+	 * 
+	 * @param optimistic
+	 *            true to skip the state check before requests
+	 * @param recheckOnFailure
+	 *            true to get the site state after a rejected request, so the
+	 *            error reports the actual state
+	 */
+	public void setOptimisticStateChecks(boolean optimistic, boolean recheckOnFailure) {
+		mOptimisticStateChecks = optimistic;
+		mRecheckStateOnFailure = recheckOnFailure;
+	}
+	
+	/**
+	 * Sets how images are shrunk before they are uploaded for augmentation,
+	 * for the ARSites obtained from this object afterwards. By default images
+	 * are uploaded as they are.
+	 * 
+	 * @param imagePreprocessor
+	 *            the preprocessor, for example ImagePreprocessor.forProfile,
+	 *            or null to upload images unchanged
+	 */
+	public void setImagePreprocessor(ImagePreprocessor imagePreprocessor) {
+		mImagePreprocessor = imagePreprocessor;
+	}
+
+	/**
+	 * Sets the thread the listeners of asynchronous calls are called on, for
+	 * this object and the ARSites obtained from it afterwards. By default it
+	 * is the main thread. Background work chaining one call into the next,
+	 * such as a sync service, can use CallbackDispatcher.direct() to be
+	 * called back on the I/O thread instead.
+	 * 
+	 * @param callbackDispatcher
+	 *            the dispatcher, or null for the default
+	 */
+	public void setCallbackDispatcher(CallbackDispatcher callbackDispatcher) {
+		mCallbackDispatcher = callbackDispatcher;
+	}
+
+	public CallbackDispatcher getCallbackDispatcher() {
+		return mCallbackDispatcher;
+	}
+
+	/**
+	 * Sets an augment result cache shared by every ARSite this object creates
+	 * afterwards. Augmenting an image a site has already augmented then
+	 * returns the cached result without an upload. By default there is none
+	 * and every image is uploaded.
+	 */
+	public void setAugmentResultCache(AugmentResultCache resultCache) {
+		mResultCache = resultCache;
+	}
+
+	public AugmentResultCache getAugmentResultCache() {
+		return mResultCache;
+	}
+
+	/**
+	 * Returns the watcher shared by everything using this object. Watch a
+	 * site through it instead of polling getState() so that one poller serves
+	 * every screen interested in the site. Any number of sites, such as all of
+	 * getUserSites(), can be watched on its fixed pool of polling threads.
+	 */
+	public synchronized SiteStateWatcher getStateWatcher() {
+		if (mStateWatcher == null) {
+			mStateWatcher = new SiteStateWatcher();
+		}
+		return mStateWatcher;
+	}
+
+	/**
+	 * Returns the fan-out used by augmentAny, which uploads to as many sites
+	 * at once as HttpUtils keeps connections.
+	 */
+	public synchronized AugmentFanOut getAugmentFanOut() {
+		if (mFanOut == null) {
+			mFanOut = new AugmentFanOut();
+		}
+		return mFanOut;
+	}
+
+	/**
+	 * Returns the ranker shared by everything using this object, which keeps
+	 * the descriptors of every site it has ranked. Use it to pick which of
+	 * the nearby sites to augment against.
+	 */
+	public synchronized SiteRanker getSiteRanker() {
+		if (mSiteRanker == null) {
+			mSiteRanker = new SiteRanker();
+		}
+		return mSiteRanker;
+	}
 
 	/**
 	 * Asynchronously create an ARSite
@@ -75,7 +202,7 @@ public class ARSites {
 	 *            callback that provides an ARSite object when the call
 	 *            completes
 	 */
-	public void create(final String id, final String name, final double lon,
+	public CancellationToken create(final String id, final String name, final double lon,
 			final double lat, final String desc, final String feature,
 			final String channel, final ARListener<ARSite> listener, final ARErrorListener onErrorListener) {
 		
@@ -97,7 +224,9 @@ public class ARSites {
 		};
 		
 		GenericAsyncTask<ARSite> asyncTask = new GenericAsyncTask<ARSite>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	/**
@@ -113,7 +242,7 @@ public class ARSites {
 	 *            callback that provides an ARSite object when the call
 	 *            completes
 	 */
-	public void create(final String id, final String desc,
+	public CancellationToken create(final String id, final String desc,
 			final String channel, final ARListener<ARSite> listener,
 			final ARErrorListener onErrorListener) {
 		GenericCallback<ARSite> genericCallback = new GenericCallback<ARSite>() {
@@ -134,7 +263,9 @@ public class ARSites {
 		};
 		
 		GenericAsyncTask<ARSite> asyncTask = new GenericAsyncTask<ARSite>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	/**
@@ -151,8 +282,8 @@ public class ARSites {
 	 *            the callback which provides a list of sites nearest the
 	 *            coordinates
 	 */
-	public void near(double lat, double lon, ARListener<List<ARSite>> sites, ARErrorListener onErrorListener) {
-		near(Double.toString(lat), Double.toString(lon), "", "", sites, onErrorListener);
+	public CancellationToken near(double lat, double lon, ARListener<List<ARSite>> sites, ARErrorListener onErrorListener) {
+		return near(Double.toString(lat), Double.toString(lon), "", "", sites, onErrorListener);
 	}
 
 	/**
@@ -169,13 +300,13 @@ public class ARSites {
 	 * @param sites
 	 *            the callback which provides a list of the nearest ARSites
 	 */
-	public void near(double lat, double lon, int max, double radius,
+	public CancellationToken near(double lat, double lon, int max, double radius,
 			ARListener<List<ARSite>> sites, ARErrorListener onErrorListener) {
-		near(Double.toString(lat), Double.toString(lon), Integer.toString(max),
+		return near(Double.toString(lat), Double.toString(lon), Integer.toString(max),
 				Double.toString(radius), sites, onErrorListener);
 	}
 
-	private void near(final String lat, final String lon, final String max, final String radius,
+	private CancellationToken near(final String lat, final String lon, final String max, final String radius,
 			final ARListener<List<ARSite>> listener, final ARErrorListener onErrorListener) {		
 		GenericCallback<List<ARSite>> genericCallback = new GenericCallback<List<ARSite>>() {
 			@Override
@@ -197,7 +328,95 @@ public class ARSites {
 		};
 		
 		GenericAsyncTask<List<ARSite>> asyncTask = new GenericAsyncTask<List<ARSite>>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
+		asyncTask.execute();
+		return asyncTask.getCancellationToken();
+	}
+
+	/**
+	 * Asynchronously augments an image against the sites near the given
+	 * coordinates, without knowing beforehand which site it shows.
+	 * 
+	 * @param lat
+	 *            latitude
+	 * @param lon
+	 *            longitude
+	 * @param image
+	 *            the image to augment
+	 * @param listener
+	 *            the callback which provides the augmented data, and the
+	 *            matched site if the server names it, once the call completes
+	 */
+	public CancellationToken augmentNear(final double lat, final double lon,
+			final InputStream image,
+			final ARListener<NearbyAugmentResult> listener,
+			final ARErrorListener onErrorListener) {
+		GenericCallback<NearbyAugmentResult> genericCallback = new GenericCallback<NearbyAugmentResult>() {
+			@Override
+			public NearbyAugmentResult toCall() {
+				return augmentNear(lat, lon, image);
+			}
+
+			@Override
+			public void onComplete(NearbyAugmentResult result) {
+				listener.handleResponse(result);
+			}
+
+			@Override
+			public void onError(Exception error) {
+				if (onErrorListener != null) {
+					onErrorListener.handleError(error);
+				}
+			}
+		};
+
+		GenericAsyncTask<NearbyAugmentResult> asyncTask = new GenericAsyncTask<NearbyAugmentResult>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
+	}
+
+	/**
+	 * Asynchronously augments an image against several candidate sites at
+	 * once, keeping the first site that localizes it.
+	 * 
+	 * @param sites
+	 *            the candidate sites, such as the result of near()
+	 * @param image
+	 *            the image to augment
+	 * @param minScore
+	 *            the lowest score a localized result may have to win
+	 * @param listener
+	 *            the callback which provides the matched site and the
+	 *            augmented data once the call completes
+	 */
+	public CancellationToken augmentAny(final List<ARSite> sites, final InputStream image,
+			final double minScore,
+			final ARListener<NearbyAugmentResult> listener,
+			final ARErrorListener onErrorListener) {
+		GenericCallback<NearbyAugmentResult> genericCallback = new GenericCallback<NearbyAugmentResult>() {
+			@Override
+			public NearbyAugmentResult toCall() {
+				return augmentAny(sites, image, minScore);
+			}
+
+			@Override
+			public void onComplete(NearbyAugmentResult result) {
+				listener.handleResponse(result);
+			}
+
+			@Override
+			public void onError(Exception error) {
+				if (onErrorListener != null) {
+					onErrorListener.handleError(error);
+				}
+			}
+		};
+
+		GenericAsyncTask<NearbyAugmentResult> asyncTask = new GenericAsyncTask<NearbyAugmentResult>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
+		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 
 	/**
@@ -208,7 +427,7 @@ public class ARSites {
 	 * @param listener
 	 *            the callback which provides the ARSite once the call completes
 	 */
-	public void getExisting(final String id, final ARListener<ARSite> listener,
+	public CancellationToken getExisting(final String id, final ARListener<ARSite> listener,
 			final ARErrorListener onErrorListener) {
 		GenericCallback<ARSite> genericCallback = new GenericCallback<ARSite>() {
 			@Override
@@ -230,7 +449,9 @@ public class ARSites {
 		};
 		
 		GenericAsyncTask<ARSite> asyncTask = new GenericAsyncTask<ARSite>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 	
 	/**
@@ -239,7 +460,7 @@ public class ARSites {
 	 * @param listener
 	 *            the callback which provides all the ARSite once the call completes
 	 */
-	public void getUserSites(final ARListener<List<ARSite>> listener, final ARErrorListener onErrorListener) {
+	public CancellationToken getUserSites(final ARListener<List<ARSite>> listener, final ARErrorListener onErrorListener) {
 		GenericCallback<List<ARSite>> genericCallback = new GenericCallback<List<ARSite>>() {
 			@Override
 			public List<ARSite> toCall() {
@@ -260,7 +481,9 @@ public class ARSites {
 		};
 		
 		GenericAsyncTask<List<ARSite>> asyncTask = new GenericAsyncTask<List<ARSite>>(genericCallback);
+		asyncTask.setCallbackDispatcher(mCallbackDispatcher);
 		asyncTask.execute();
+		return asyncTask.getCancellationToken();
 	}
 	
 	/*
@@ -288,8 +511,7 @@ public class ARSites {
 		if (listUserSitesResponse.getSites() != null) {
 			List<ARSite> userSites = new ArrayList<ARSite>();
 			for(String siteId : listUserSitesResponse.getSites()) {
-				ARSite newSite = new ARSiteImpl(siteId,
-						mApiKey, mTime, mSignature);
+				ARSite newSite = siteFor(siteId);
 				userSites.add(newSite);
 			}
 			return userSites;
@@ -323,8 +545,7 @@ public class ARSites {
 				serverResponse, GetSiteInfoResponse.class);
 
 		if (getSiteResponse.getSuccess() == true) {
-			ARSite newSite = new ARSiteImpl(getSiteResponse.getSite().getId(),
-					mApiKey, mTime, mSignature);
+			ARSite newSite = siteFor(getSiteResponse.getSite().getId());
 			return newSite;
 		} else {
 			throw new ARException(
@@ -400,7 +621,7 @@ public class ARSites {
 				serverResponse, BasicResponse.class);
 
 		if (addSiteResponse.getSuccess() == true) {
-			return new ARSiteImpl(id, mApiKey, mTime, mSignature);
+			return siteFor(id);
 		} else {
 			throw new ARException(
 					"Successfully communicated with the server, but failed to create a new site. The site id could already be in use, or a problem occurred.");
@@ -460,8 +681,7 @@ public class ARSites {
 			List<SiteInfo> sitesInfo = nearbySites.getSites();
 			List<ARSite> nearbySitesList = new ArrayList<ARSite>();
 			for (SiteInfo info : sitesInfo) {
-				nearbySitesList.add(new ARSiteImpl(info.getId(), mApiKey,
-						mTime, mSignature));
+				nearbySitesList.add(siteFor(info.getId()));
 			}
 			return nearbySitesList;
 		} else {
@@ -471,4 +691,98 @@ public class ARSites {
 
 	}
 
+	/**
+	 * Synchronously augments an image against the sites near the given
+	 * coordinates. The server picks the site, so this takes one upload and
+	 * the result polls, instead of finding the nearby sites, checking their
+	 * states and augmenting against each.
+	 * 
+	 * @param lat
+	 *            latitude
+	 * @param lon
+	 *            longitude
+	 * @param image
+	 *            the image to augment
+	 * @return the augmented data, and the matched site if the server's
+	 *         response names it
+	 */
+	public NearbyAugmentResult augmentNear(double lat, double lon,
+			InputStream image) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("lat", Double.toString(lat));
+		params.put("lon", Double.toString(lon));
+
+		MultipartEntity imageEntity = new MultipartEntity();
+		ContentBody imageBody;
+		ImagePreprocessor.PreparedImage preparedImage = null;
+		if (mImagePreprocessor == null) {
+			imageBody = new InputStreamBody(image, "image");
+		} else {
+			preparedImage = mImagePreprocessor.prepare(image, "image");
+			imageBody = preparedImage;
+		}
+		imageEntity.addPart("image", imageBody);
+
+		HttpUtils httpUtils = new HttpUtils(mApiKey, mTime, mSignature);
+		HttpResponse serverResponse;
+		try {
+			serverResponse = httpUtils.doPost(
+					HttpUtils.PARWORKS_API_BASE_URL
+							+ HttpUtils.AUGMENT_IMAGE_WITH_PROXIMITY_SEARCH_PATH,
+					imageEntity, params);
+		} finally {
+			if (preparedImage != null) {
+				preparedImage.release();
+			}
+		}
+		HttpUtils.handleStatusCode(serverResponse.getStatusLine()
+				.getStatusCode());
+
+		ARResponseHandler responseHandler = new ARResponseHandlerImpl();
+		AugmentImageGeoResponse augmentResponse = responseHandler
+				.handleResponse(serverResponse, AugmentImageGeoResponse.class);
+
+		if (augmentResponse.getSuccess() == false) {
+			throw new ARException(
+					"Successfully communicated with the server, but failed to augment the image. Perhaps there are no sites with overlays near the location.");
+		}
+
+		// without the site, the result is polled by the image id alone
+		String siteId = augmentResponse.getSite();
+		ARSiteImpl site = siteFor(siteId);
+		AugmentedData augmentedData = site.pollAugmentResult(
+				augmentResponse.getImgId()).getResult();
+		return new NearbyAugmentResult(siteId == null ? null : site,
+				augmentedData);
+	}
+
+	/**
+	 * Synchronously augments an image against several candidate sites at
+	 * once. The image is uploaded to every site concurrently, and the first
+	 * result that is localized with at least minScore wins; the other
+	 * augments are cancelled.
+	 * 
+	 * @param sites
+	 *            the candidate sites, such as the result of near()
+	 * @param image
+	 *            the image to augment
+	 * @param minScore
+	 *            the lowest score a localized result may have to win
+	 * @return the matched site and the augmented data
+	 */
+	public NearbyAugmentResult augmentAny(List<ARSite> sites,
+			InputStream image, double minScore) {
+		return getAugmentFanOut().augment(sites, image, minScore).getResult();
+	}
+
+	private ARSiteImpl siteFor(String id) {
+		ARSiteImpl site = new ARSiteImpl(id, mApiKey, mTime, mSignature);
+		site.setStateCache(mStateCache);
+		site.setOptimisticStateChecks(mOptimisticStateChecks, mRecheckStateOnFailure);
+		site.setImagePreprocessor(mImagePreprocessor);
+		site.setAugmentResultCache(mResultCache);
+		site.setCallbackDispatcher(mCallbackDispatcher);
+		return site;
+	}
+
 }
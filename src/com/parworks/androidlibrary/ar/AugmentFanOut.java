@@ -0,0 +1,291 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.parworks.androidlibrary.utils.HttpUtils;
+import com.parworks.androidlibrary.utils.NamedThreadFactory;
+import com.parworks.androidlibrary.utils.RequestContext;
+import com.parworks.androidlibrary.utils.SpooledImage;
+
+/**
+ * Augments one image against several candidate sites at once and keeps the
+ * first confident result. The image is read once and uploaded to every site
+ * concurrently; as soon as one site localizes it with a high enough score,
+ * the other uploads and result polls are cancelled. Finding the matching
+ * site then takes about as long as that site's augment, instead of the sum
+ * of augmenting against each site in turn.
+ *
+ * Example:
+ *
+ *     ARFuture<NearbyAugmentResult> match = fanOut.augment(
+ *             arSites.near(lat, lon, 5, 100), image, 0.5);
+ *     NearbyAugmentResult result = match.getResult();
+ */
+public class AugmentFanOut {
+
+	private final ExecutorService mUploads;
+
+	/**
+	 * Creates a fan-out that uploads to as many sites at once as HttpUtils
+	 * keeps connections.
+	 */
+	public AugmentFanOut() {
+		this(HttpUtils.getMaxConnections());
+	}
+
+	/**
+	 * @param concurrentUploads
+	 *            the most uploads running at once, across every augment
+	 */
+	public AugmentFanOut(int concurrentUploads) {
+		mUploads = Executors.newFixedThreadPool(concurrentUploads,
+				new NamedThreadFactory("augment-fan-out"));
+	}
+
+	/**
+	 * Augments an image against every site.
+	 *
+	 * @param sites
+	 *            the candidate sites, which must be ready to augment images
+	 * @param image
+	 *            the image. It is read and closed before this returns.
+	 * @param minScore
+	 *            the lowest score a localized result may have to win
+	 * @return a future completed with the first localized result scoring at
+	 *         least minScore, or with an error if no site gives one.
+	 *         Cancelling it, or the calling thread's RequestContext, cancels
+	 *         the augments still running.
+	 */
+	public ARFuture<NearbyAugmentResult> augment(List<ARSite> sites,
+			InputStream image, double minScore) {
+		SpooledImage spooled = new SpooledImage(image);
+		final FanOut fanOut = new FanOut(sites.size(), minScore);
+		CancellationToken token = RequestContext.currentCancellationToken();
+		if (token != null) {
+			fanOut.followCaller(token);
+		}
+		if (sites.isEmpty()) {
+			fanOut.setError(new ARException("There are no sites to augment against."));
+			return fanOut;
+		}
+		for (ARSite site : sites) {
+			fanOut.start(site, spooled);
+		}
+		return fanOut;
+	}
+
+	/**
+	 * Stops accepting images and releases the upload threads once the queued
+	 * uploads are done.
+	 */
+	public void shutdown() {
+		mUploads.shutdown();
+	}
+
+	/**
+	 * @return the score of a result, or negative infinity if it has none
+	 */
+	private static double score(AugmentedData result) {
+		if (result.getScore() == null) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		try {
+			return Double.parseDouble(result.getScore());
+		} catch (NumberFormatException e) {
+			return Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * The future returned by augment, which runs the augment against each
+	 * site under its own cancellation token so the losers can be cancelled.
+	 */
+	private class FanOut extends ARFuture<NearbyAugmentResult> {
+
+		private final double mMinScore;
+		// guards the fields below. The future's own lock is not used because
+		// completing it calls listeners.
+		private final Object mLock = new Object();
+		private final List<Future<?>> mUploadTasks = new ArrayList<Future<?>>();
+		private final List<CancellationToken> mTokens = new ArrayList<CancellationToken>();
+		private int mRemaining;
+		private Exception mLastError;
+		private CancellationToken mCallerToken;
+		private Runnable mCallerListener;
+
+		FanOut(int sites, double minScore) {
+			mRemaining = sites;
+			mMinScore = minScore;
+		}
+
+		/**
+		 * Cancels the fan-out when the caller's token is cancelled. The
+		 * listener is removed once the fan-out completes, so a long-lived
+		 * token doesn't keep it and its image reachable.
+		 */
+		void followCaller(CancellationToken token) {
+			Runnable listener = new Runnable() {
+				@Override
+				public void run() {
+					cancel(false);
+				}
+			};
+			synchronized (mLock) {
+				mCallerToken = token;
+				mCallerListener = listener;
+			}
+			token.addCancelListener(listener);
+			if (isDone()) {
+				// completed before the listener was added
+				token.removeCancelListener(listener);
+			}
+		}
+
+		void start(final ARSite site, final SpooledImage image) {
+			final CancellationToken token = new CancellationToken();
+			Future<?> upload = mUploads.submit(new Runnable() {
+				@Override
+				public void run() {
+					if (isDone()) {
+						return;
+					}
+					// the upload is aborted and the poll stopped by the token
+					RequestContext previous = RequestContext
+							.attach(new RequestContext(token));
+					ARFuture<AugmentedData> poll;
+					try {
+						poll = site.pollAugmentResult(site
+								.startImageAugment(image.newInputStream()));
+					} catch (Exception e) {
+						siteFinished(e);
+						return;
+					} finally {
+						RequestContext.restore(previous);
+					}
+					follow(site, poll);
+				}
+			});
+			synchronized (mLock) {
+				mUploadTasks.add(upload);
+				mTokens.add(token);
+			}
+			if (isDone()) {
+				upload.cancel(false);
+				token.cancel();
+			}
+		}
+
+		private void follow(final ARSite site, ARFuture<AugmentedData> poll) {
+			poll.addListener(new ARListener<AugmentedData>() {
+				@Override
+				public void handleResponse(AugmentedData result) {
+					if (result.isLocalization() && score(result) >= mMinScore
+							&& set(new NearbyAugmentResult(site, result))) {
+						cancelOutstanding();
+					} else {
+						siteFinished(null);
+					}
+				}
+			}, new ARErrorListener() {
+				@Override
+				public void handleError(Exception error) {
+					siteFinished(error);
+				}
+			});
+		}
+
+		/**
+		 * Called when a site's augment failed or gave no winning result.
+		 */
+		private void siteFinished(Exception error) {
+			Exception lastError;
+			synchronized (mLock) {
+				if (error != null) {
+					mLastError = error;
+				}
+				if (--mRemaining > 0) {
+					return;
+				}
+				lastError = mLastError;
+			}
+			setError(new ARException(
+					"None of the sites localized the image with a score of at least "
+							+ mMinScore + ".", lastError));
+		}
+
+		@Override
+		public boolean set(NearbyAugmentResult result) {
+			if (!super.set(result)) {
+				return false;
+			}
+			releaseCaller();
+			return true;
+		}
+
+		@Override
+		public boolean setError(Exception error) {
+			if (!super.setError(error)) {
+				return false;
+			}
+			releaseCaller();
+			return true;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning)) {
+				return false;
+			}
+			releaseCaller();
+			cancelOutstanding();
+			return true;
+		}
+
+		private void releaseCaller() {
+			CancellationToken token;
+			Runnable listener;
+			synchronized (mLock) {
+				token = mCallerToken;
+				listener = mCallerListener;
+				mCallerToken = null;
+				mCallerListener = null;
+			}
+			if (token != null) {
+				token.removeCancelListener(listener);
+			}
+		}
+
+		private void cancelOutstanding() {
+			List<Future<?>> uploads;
+			List<CancellationToken> tokens;
+			synchronized (mLock) {
+				uploads = new ArrayList<Future<?>>(mUploadTasks);
+				tokens = new ArrayList<CancellationToken>(mTokens);
+			}
+			for (Future<?> upload : uploads) {
+				upload.cancel(false);
+			}
+			for (CancellationToken token : tokens) {
+				token.cancel();
+			}
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.parworks.androidlibrary.utils.HttpUtils;
+import com.parworks.androidlibrary.utils.NamedThreadFactory;
+import com.parworks.androidlibrary.utils.RequestContext;
+
+/**
+ * Augments batches of images. Uploads run concurrently over the pooled
+ * connections of HttpUtils, and once an image is uploaded its result is
+ * polled for by the site's shared AugmentResultPoller, so no thread waits on
+ * the server. Throughput grows with the number of connections rather than
+ * the number of threads.
+ *
+ * Results are delivered as they complete, which may not be the order the
+ * images were submitted in, together with the token passed to submit.
+ *
+ * Example:
+ *
+ *     AugmentQueue queue = new AugmentQueue(new AugmentQueue.AugmentQueueListener() {
+ *         public void onAugmentResult(Object token, AugmentedData data) {
+ *             // token is the file the image was read from
+ *         }
+ *         public void onAugmentError(Object token, Exception error) {
+ *         }
+ *     });
+ *     for (File file : files) {
+ *         queue.submit(site, new FileInputStream(file), file);
+ *     }
+ */
+public class AugmentQueue {
+
+	/**
+	 * Receives the results of the queue, on a polling or upload thread.
+	 */
+	public interface AugmentQueueListener {
+		public void onAugmentResult(Object token, AugmentedData data);
+
+		public void onAugmentError(Object token, Exception error);
+	}
+
+	private final AugmentQueueListener mListener;
+	private final ExecutorService mUploads;
+	private final AtomicInteger mPending = new AtomicInteger();
+	private final AtomicInteger mCompleted = new AtomicInteger();
+	private final AtomicInteger mFailed = new AtomicInteger();
+
+	/**
+	 * Creates a queue that uploads as many images at once as HttpUtils keeps
+	 * connections.
+	 */
+	public AugmentQueue(AugmentQueueListener listener) {
+		this(listener, HttpUtils.getMaxConnections());
+	}
+
+	/**
+	 * @param listener
+	 *            receives every result. May be null if the futures returned
+	 *            by submit are used instead.
+	 * @param concurrentUploads
+	 *            the most images uploaded at once
+	 */
+	public AugmentQueue(AugmentQueueListener listener, int concurrentUploads) {
+		mListener = listener;
+		mUploads = Executors.newFixedThreadPool(concurrentUploads,
+				new NamedThreadFactory("augment-upload"));
+	}
+
+	/**
+	 * Queues an image to be augmented.
+	 *
+	 * @param site
+	 *            the site to augment the image against
+	 * @param image
+	 *            the image. It is read and closed on an upload thread.
+	 * @param token
+	 *            passed to the listener with the result, to tell results
+	 *            apart
+	 * @return a future completed with the result. Cancelling it drops the
+	 *         image if it has not been uploaded, aborts the upload if it is
+	 *         in progress and stops polling if it is done. The listener is
+	 *         not told about a cancelled image.
+	 */
+	public ARFuture<AugmentedData> submit(final ARSite site,
+			final InputStream image, final Object token) {
+		final QueuedAugment augment = new QueuedAugment();
+		mPending.incrementAndGet();
+		mUploads.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (augment.isCancelled()) {
+					closeQuietly(image);
+					finish(token, null, null);
+					return;
+				}
+				String imgId;
+				ARFuture<AugmentedData> poll;
+				RequestContext previous = RequestContext.attach(new RequestContext(
+						augment.mToken));
+				try {
+					imgId = site.startImageAugment(image);
+					poll = site.pollAugmentResult(imgId);
+				} catch (Exception e) {
+					if (augment.setError(e)) {
+						finish(token, null, e);
+					} else {
+						// cancelled, which aborted the upload
+						finish(token, null, null);
+					}
+					return;
+				} finally {
+					RequestContext.restore(previous);
+					closeQuietly(image);
+				}
+				augment.follow(poll, token);
+			}
+		});
+		return augment;
+	}
+
+	/**
+	 * @return the number of images submitted whose result has not been
+	 *         delivered yet
+	 */
+	public int getPendingCount() {
+		return mPending.get();
+	}
+
+	public int getCompletedCount() {
+		return mCompleted.get();
+	}
+
+	public int getFailedCount() {
+		return mFailed.get();
+	}
+
+	/**
+	 * Stops accepting images and releases the upload threads once the queued
+	 * uploads are done. Results already being polled for are still delivered.
+	 */
+	public void shutdown() {
+		mUploads.shutdown();
+	}
+
+	private void finish(Object token, AugmentedData data, Exception error) {
+		mPending.decrementAndGet();
+		if (data != null) {
+			mCompleted.incrementAndGet();
+			if (mListener != null) {
+				mListener.onAugmentResult(token, data);
+			}
+		} else if (error != null) {
+			mFailed.incrementAndGet();
+			if (mListener != null) {
+				mListener.onAugmentError(token, error);
+			}
+		}
+	}
+
+	private static void closeQuietly(InputStream image) {
+		try {
+			image.close();
+		} catch (Exception e) {
+			// the image has been read, nothing is lost
+		}
+	}
+
+	/**
+	 * The future returned by submit, which also cancels the upload and the
+	 * result poll it follows.
+	 */
+	private class QueuedAugment extends ARFuture<AugmentedData> {
+
+		// cancels the upload and, through the poller, the poll
+		final CancellationToken mToken = new CancellationToken();
+		private ARFuture<AugmentedData> mPoll;
+
+		/**
+		 * Completes this future with the poll's result. The listeners run
+		 * outside the lock, so a listener that cancels another future can't
+		 * deadlock with it.
+		 */
+		void follow(ARFuture<AugmentedData> poll, final Object token) {
+			boolean cancelled;
+			synchronized (this) {
+				mPoll = poll;
+				cancelled = isCancelled();
+			}
+			if (cancelled) {
+				poll.cancel(false);
+				finish(token, null, null);
+				return;
+			}
+			// if cancel wins the poll, the listeners are not called and
+			// cancel counts the augment as finished
+			poll.addListener(new ARListener<AugmentedData>() {
+				@Override
+				public void handleResponse(AugmentedData result) {
+					if (set(result)) {
+						finish(token, result, null);
+					} else {
+						finish(token, null, null);
+					}
+				}
+			}, new ARErrorListener() {
+				@Override
+				public void handleError(Exception error) {
+					if (setError(error)) {
+						finish(token, null, error);
+					} else {
+						finish(token, null, null);
+					}
+				}
+			});
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (this) {
+				if (mPoll != null && mPoll.cancel(mayInterruptIfRunning)) {
+					// the poll's listeners will not be called
+					mPending.decrementAndGet();
+				}
+				if (!super.cancel(mayInterruptIfRunning)) {
+					return false;
+				}
+			}
+			// outside the lock, as the upload's abort runs on this thread
+			mToken.cancel();
+			return true;
+		}
+	}
+}
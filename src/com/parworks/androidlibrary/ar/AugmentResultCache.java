@@ -0,0 +1,406 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.parworks.androidlibrary.utils.SpooledImage;
+
+/**
+ * Remembers the results of augmented images, keyed by the site and the SHA-1
+ * of the image, so augmenting the same image again, such as a photo picked
+ * from the gallery twice, needs no upload. The most recently used results are
+ * kept in memory, and optionally also written to a directory so they survive
+ * restarts. The directory is trimmed to a maximum size, oldest files first.
+ *
+ * Only localized results are cached, so an image that found nothing is
+ * uploaded again. Results expire after a maximum age, because the site can be
+ * changed by other clients. Changes made through an ARSite that uses the
+ * cache drop the site's results right away: adding base images, processing
+ * them, and adding, updating or deleting overlays.
+ *
+ * Caching is off unless a cache is set with ARSites.setAugmentResultCache or
+ * ARSiteImpl.setAugmentResultCache. Augmenting through a cache reads the
+ * whole image into memory to hash it before the upload.
+ */
+public class AugmentResultCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 32;
+	public static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000;
+	public static final long DEFAULT_MAX_DISK_BYTES = 4 * 1024 * 1024;
+
+	private static final String FILE_SUFFIX = ".augment";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final Map<String, StoredResult> mEntries;
+	private long mMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+	private File mDirectory;
+	private long mMaxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+	private long mGeneration;
+	private long mHitCount;
+	private long mMissCount;
+
+	// serializes trimming the directory, which is done outside the cache lock
+	private final Object mDiskLock = new Object();
+
+	public AugmentResultCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the most results kept in memory
+	 */
+	public AugmentResultCache(final int maxEntries) {
+		mEntries = new LinkedHashMap<String, StoredResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, StoredResult> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param maxAgeMillis
+	 *            how long a result is returned after it was stored
+	 */
+	public synchronized void setMaxAge(long maxAgeMillis) {
+		mMaxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Turns on writing results to a directory, for example a subdirectory of
+	 * Context.getCacheDir(), keeping at most DEFAULT_MAX_DISK_BYTES in it.
+	 *
+	 * @param directory
+	 *            the directory, created if needed, or null to keep results
+	 *            only in memory
+	 */
+	public void setDiskDirectory(File directory) {
+		setDiskDirectory(directory, DEFAULT_MAX_DISK_BYTES);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory, created if needed, or null to keep results
+	 *            only in memory
+	 * @param maxBytes
+	 *            the most bytes of results kept in the directory
+	 */
+	public void setDiskDirectory(File directory, long maxBytes) {
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new ARException("Couldn't create the augment cache directory "
+					+ directory);
+		}
+		synchronized (this) {
+			mDirectory = directory;
+			mMaxDiskBytes = maxBytes;
+		}
+		if (directory != null) {
+			trim(directory, maxBytes);
+		}
+	}
+
+	/**
+	 * Returns a number that changes whenever results are invalidated. Pass it
+	 * to put, read before the augment starts, so a result that was computed
+	 * before the site changed is not stored.
+	 */
+	public synchronized long getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * @return the cached result of augmenting the image against the site, or
+	 *         null
+	 */
+	public AugmentedData get(String siteId, SpooledImage image) {
+		String key = key(siteId, image);
+		long now = System.currentTimeMillis();
+		File directory;
+		long generation;
+		long maxAge;
+		synchronized (this) {
+			StoredResult entry = mEntries.get(key);
+			if (entry != null && now - entry.storedAt <= mMaxAgeMillis) {
+				mHitCount++;
+				return entry.result;
+			}
+			if (entry != null) {
+				mEntries.remove(key);
+			}
+			directory = mDirectory;
+			generation = mGeneration;
+			maxAge = mMaxAgeMillis;
+		}
+
+		StoredResult entry = null;
+		if (directory != null) {
+			entry = read(new File(directory, key + FILE_SUFFIX), now, maxAge);
+		}
+		synchronized (this) {
+			if (entry == null) {
+				mMissCount++;
+				return null;
+			}
+			// the site may have been invalidated while the file was read
+			if (generation != mGeneration) {
+				mMissCount++;
+				return null;
+			}
+			mEntries.put(key, entry);
+			mHitCount++;
+			return entry.result;
+		}
+	}
+
+	/**
+	 * Stores a result unless it was not localized or results have been
+	 * invalidated since generation was read.
+	 */
+	public void put(String siteId, SpooledImage image, AugmentedData result,
+			long generation) {
+		if (result == null || !result.isLocalization()) {
+			return;
+		}
+		String key = key(siteId, image);
+		StoredResult entry = new StoredResult(result, System.currentTimeMillis());
+		File directory;
+		long maxBytes;
+		synchronized (this) {
+			if (generation != mGeneration) {
+				return;
+			}
+			mEntries.put(key, entry);
+			directory = mDirectory;
+			maxBytes = mMaxDiskBytes;
+		}
+		if (directory == null) {
+			return;
+		}
+
+		File file = new File(directory, key + FILE_SUFFIX);
+		if (!write(file, entry)) {
+			return;
+		}
+		boolean stale;
+		synchronized (this) {
+			stale = generation != mGeneration;
+		}
+		if (stale) {
+			// invalidated while the file was written, which may have missed it
+			file.delete();
+			return;
+		}
+		trim(directory, maxBytes);
+	}
+
+	/**
+	 * Drops every result of a site, in memory and on disk.
+	 */
+	public void invalidateSite(String siteId) {
+		String prefix = sitePrefix(siteId);
+		File directory;
+		synchronized (this) {
+			mGeneration++;
+			Iterator<String> keys = mEntries.keySet().iterator();
+			while (keys.hasNext()) {
+				if (keys.next().startsWith(prefix)) {
+					keys.remove();
+				}
+			}
+			directory = mDirectory;
+		}
+		deleteFiles(directory, prefix);
+	}
+
+	/**
+	 * Drops every result, in memory and on disk.
+	 */
+	public void clear() {
+		File directory;
+		synchronized (this) {
+			mGeneration++;
+			mEntries.clear();
+			directory = mDirectory;
+		}
+		deleteFiles(directory, "");
+	}
+
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	private static class StoredResult implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final AugmentedData result;
+		final long storedAt;
+
+		StoredResult(AugmentedData result, long storedAt) {
+			this.result = result;
+			this.storedAt = storedAt;
+		}
+	}
+
+	// site ids are hashed so keys have a fixed length prefix that is safe in
+	// file names
+	private static String sitePrefix(String siteId) {
+		return SpooledImage.sha1(siteId) + "-";
+	}
+
+	private static String key(String siteId, SpooledImage image) {
+		return sitePrefix(siteId) + image.getSha1();
+	}
+
+	private static void deleteFiles(File directory, String prefix) {
+		if (directory == null) {
+			return;
+		}
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix)
+					&& (name.endsWith(FILE_SUFFIX) || name.endsWith(TEMP_SUFFIX))) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the oldest results until the directory holds at most maxBytes.
+	 */
+	private void trim(File directory, long maxBytes) {
+		synchronized (mDiskLock) {
+			File[] files = directory.listFiles();
+			if (files == null) {
+				return;
+			}
+			List<File> results = new ArrayList<File>();
+			long total = 0;
+			for (File file : files) {
+				if (file.getName().endsWith(FILE_SUFFIX)) {
+					results.add(file);
+					total += file.length();
+				}
+			}
+			if (total <= maxBytes) {
+				return;
+			}
+			Collections.sort(results, new Comparator<File>() {
+				@Override
+				public int compare(File lhs, File rhs) {
+					long l = lhs.lastModified();
+					long r = rhs.lastModified();
+					return l < r ? -1 : (l == r ? 0 : 1);
+				}
+			});
+			for (File file : results) {
+				if (total <= maxBytes) {
+					break;
+				}
+				long length = file.length();
+				if (file.delete()) {
+					total -= length;
+				}
+			}
+		}
+	}
+
+	private static StoredResult read(File file, long now, long maxAge) {
+		if (!file.isFile()) {
+			return null;
+		}
+		ObjectInputStream in = null;
+		StoredResult entry;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			entry = (StoredResult) in.readObject();
+		} catch (Exception e) {
+			// unreadable, for example written by an older version
+			file.delete();
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+		if (now - entry.storedAt > maxAge) {
+			file.delete();
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Writes to a temporary file that is renamed into place, so a concurrent
+	 * get never reads half a result.
+	 */
+	private static boolean write(File file, StoredResult entry) {
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeObject(entry);
+			out.close();
+			out = null;
+			if (temp.renameTo(file)) {
+				return true;
+			}
+		} catch (IOException e) {
+			// the result is still cached in memory
+		} finally {
+			closeQuietly(out);
+		}
+		temp.delete();
+		return false;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// nothing more will be read or written
+		}
+	}
+}
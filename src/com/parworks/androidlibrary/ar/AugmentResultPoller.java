@@ -0,0 +1,306 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.parworks.androidlibrary.utils.PollScheduler;
+import com.parworks.androidlibrary.utils.RequestContext;
+
+/**
+ * Polls for the results of augments on a PollScheduler, so no thread is held
+ * while the server processes an image.
+ *
+ * Polls back off from the initial delay by a constant factor up to a cap. The
+ * time the server takes to augment is averaged per site, and the first poll
+ * for a site with an estimate is put off until shortly before the result is
+ * expected, so most augments need only one or two polls.
+ *
+ * In long poll mode each poll asks the server to hold the request open until
+ * the result is ready, so it arrives without waiting out a poll interval. If
+ * the server turns out to answer at once instead, the poller falls back to
+ * the backoff schedule. A long poll holds one of the scheduler's threads while
+ * it waits, so give a poller in this mode a scheduler with a thread and an in
+ * flight slot for each augment expected to be outstanding at once. Long polls
+ * go over their own connections, outside HttpUtils' connection limit and the
+ * RequestScheduler, so waiting augments don't hold up other requests.
+ *
+ * By default a result is waited for as long as it takes, as augmentImage
+ * always has; setTimeout bounds the wait.
+ *
+ * All the sites created by an ARSites share the default poller.
+ */
+public class AugmentResultPoller {
+
+	public static final long DEFAULT_INITIAL_DELAY_MILLIS = 250;
+	public static final double DEFAULT_BACKOFF_FACTOR = 1.5;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 2 * 1000;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 0;
+	public static final long DEFAULT_LONG_POLL_MILLIS = 20 * 1000;
+
+	// weight of the newest observation in the per site average
+	private static final double AUGMENT_TIME_WEIGHT = 0.3;
+	// fraction of the expected augment time to wait before the first poll
+	private static final double FIRST_POLL_FRACTION = 0.8;
+	// an empty long poll answered faster than this fraction of the wait means
+	// the server ignored the wait
+	private static final double LONG_POLL_IGNORED_FRACTION = 0.5;
+	// empty long polls answered early in a row before falling back
+	private static final int LONG_POLL_IGNORED_LIMIT = 2;
+
+	private static AugmentResultPoller sDefault;
+
+	private final PollScheduler mScheduler;
+	private final Map<String, Double> mAverageAugmentMillis = new HashMap<String, Double>();
+	private long mInitialDelayMillis = DEFAULT_INITIAL_DELAY_MILLIS;
+	private double mBackoffFactor = DEFAULT_BACKOFF_FACTOR;
+	private long mMaxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+	private long mLongPollMillis;
+	private boolean mLongPollSupported = true;
+	private int mLongPollsIgnored;
+
+	public AugmentResultPoller() {
+		this(new PollScheduler());
+	}
+
+	/**
+	 * @param scheduler
+	 *            the scheduler to run the polls on. It may be shared, for
+	 *            example with a SiteStateWatcher.
+	 */
+	public AugmentResultPoller(PollScheduler scheduler) {
+		mScheduler = scheduler;
+	}
+
+	/**
+	 * @return the poller used by sites that were not given one
+	 */
+	public static synchronized AugmentResultPoller getDefault() {
+		if (sDefault == null) {
+			sDefault = new AugmentResultPoller();
+		}
+		return sDefault;
+	}
+
+	public PollScheduler getPollScheduler() {
+		return mScheduler;
+	}
+
+	/**
+	 * Sets the polling schedule.
+	 *
+	 * @param initialDelayMillis
+	 *            the delay before the first poll when there is no estimate for
+	 *            the site, and the first delay of the backoff
+	 * @param backoffFactor
+	 *            how much each delay grows over the previous one
+	 * @param maxDelayMillis
+	 *            the cap on the delay between polls
+	 */
+	public synchronized void setBackoff(long initialDelayMillis,
+			double backoffFactor, long maxDelayMillis) {
+		mInitialDelayMillis = initialDelayMillis;
+		mBackoffFactor = backoffFactor;
+		mMaxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * @param timeoutMillis
+	 *            how long to wait for a result before failing with an
+	 *            ARException. 0, the default, waits forever.
+	 */
+	public synchronized void setTimeout(long timeoutMillis) {
+		mTimeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Turns long poll mode on or off.
+	 * 
+	 * @param longPollMillis
+	 *            how long the server may hold each poll open, for example
+	 *            DEFAULT_LONG_POLL_MILLIS. 0 turns long polling off.
+	 */
+	public synchronized void setLongPollMillis(long longPollMillis) {
+		mLongPollMillis = longPollMillis;
+		mLongPollSupported = true;
+		mLongPollsIgnored = 0;
+	}
+
+	/**
+	 * @return true if polls are long polls, false if long polling is off or
+	 *         the poller fell back because the server does not support it
+	 */
+	public synchronized boolean isLongPolling() {
+		return mLongPollMillis > 0 && mLongPollSupported;
+	}
+
+	/**
+	 * @return the average time the site has taken to augment an image, or 0 if
+	 *         no augment has been timed yet
+	 */
+	public synchronized long getAverageAugmentMillis(String siteId) {
+		Double average = mAverageAugmentMillis.get(siteId);
+		return average == null ? 0 : average.longValue();
+	}
+
+	/**
+	 * Starts polling for the result of an augment.
+	 *
+	 * @param site
+	 *            the site the image was augmented against
+	 * @param imgId
+	 *            the id returned by startImageAugment
+	 * @return a future completed with the result. Cancelling it, or the
+	 *         calling thread's RequestContext, stops the polling.
+	 */
+	public ARFuture<AugmentedData> poll(ARSiteImpl site, String imgId) {
+		final ResultPoll poll = new ResultPoll(site, imgId, RequestContext.current());
+		final CancellationToken token = RequestContext.currentCancellationToken();
+		if (token != null) {
+			final Runnable cancel = new Runnable() {
+				@Override
+				public void run() {
+					poll.mFuture.cancel(false);
+				}
+			};
+			token.addCancelListener(cancel);
+			poll.mFuture.addListener(new ARListener<AugmentedData>() {
+				@Override
+				public void handleResponse(AugmentedData result) {
+					token.removeCancelListener(cancel);
+				}
+			}, new ARErrorListener() {
+				@Override
+				public void handleError(Exception error) {
+					token.removeCancelListener(cancel);
+				}
+			});
+		}
+		long firstDelay;
+		synchronized (this) {
+			firstDelay = mInitialDelayMillis;
+			Double average = mAverageAugmentMillis.get(site.getSiteId());
+			if (isLongPolling()) {
+				firstDelay = 0;
+			} else if (average != null) {
+				firstDelay = Math.max(firstDelay,
+						(long) (average * FIRST_POLL_FRACTION));
+			}
+		}
+		mScheduler.schedule(poll, firstDelay);
+		return poll.mFuture;
+	}
+
+	private synchronized void recordAugmentTime(String siteId, long millis) {
+		Double average = mAverageAugmentMillis.get(siteId);
+		if (average == null) {
+			mAverageAugmentMillis.put(siteId, Double.valueOf(millis));
+		} else {
+			mAverageAugmentMillis.put(siteId, AUGMENT_TIME_WEIGHT * millis
+					+ (1 - AUGMENT_TIME_WEIGHT) * average);
+		}
+	}
+
+	private synchronized long nextDelay(long previousDelay) {
+		if (previousDelay == 0) {
+			return mInitialDelayMillis;
+		}
+		return Math.min(mMaxDelayMillis,
+				(long) (previousDelay * mBackoffFactor));
+	}
+
+	private synchronized long getTimeoutMillis() {
+		return mTimeoutMillis;
+	}
+
+	private synchronized long getLongPollWait() {
+		return isLongPolling() ? mLongPollMillis : 0;
+	}
+
+	/**
+	 * Records the outcome of a long poll that returned no result.
+	 */
+	private synchronized void recordEmptyLongPoll(long waitMillis,
+			long tookMillis) {
+		if (tookMillis >= waitMillis * LONG_POLL_IGNORED_FRACTION) {
+			mLongPollsIgnored = 0;
+		} else if (++mLongPollsIgnored >= LONG_POLL_IGNORED_LIMIT) {
+			mLongPollSupported = false;
+		}
+	}
+
+	private class ResultPoll implements PollScheduler.PollTask {
+
+		final ARSiteImpl mSite;
+		final String mImgId;
+		// the context of the thread that started the poll, so requests made
+		// on the polling threads are aborted when it is cancelled
+		final RequestContext mContext;
+		final ARFuture<AugmentedData> mFuture = new ARFuture<AugmentedData>();
+		final long mStarted = now();
+		long mDelay;
+
+		ResultPoll(ARSiteImpl site, String imgId, RequestContext context) {
+			mSite = site;
+			mImgId = imgId;
+			mContext = context;
+		}
+
+		@Override
+		public long poll() {
+			if (mFuture.isDone()) {
+				return -1;
+			}
+			long wait = getLongPollWait();
+			long pollStarted = now();
+			AugmentedData result;
+			RequestContext previous = RequestContext.attach(mContext);
+			try {
+				result = mSite.getAugmentResult(mImgId, wait);
+			} catch (Exception e) {
+				mFuture.setError(e);
+				return -1;
+			} finally {
+				RequestContext.restore(previous);
+			}
+			long elapsed = now() - mStarted;
+			if (result != null) {
+				recordAugmentTime(mSite.getSiteId(), elapsed);
+				mFuture.set(result);
+				return -1;
+			}
+			long timeout = getTimeoutMillis();
+			if (timeout > 0 && elapsed >= timeout) {
+				mFuture.setError(new ARException("No augment result for image "
+						+ mImgId + " after " + elapsed + " ms."));
+				return -1;
+			}
+			if (wait > 0) {
+				recordEmptyLongPoll(wait, now() - pollStarted);
+				if (isLongPolling()) {
+					// the server waited, so ask again straight away
+					return 0;
+				}
+			}
+			mDelay = nextDelay(mDelay);
+			return mDelay;
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
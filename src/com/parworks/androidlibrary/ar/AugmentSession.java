@@ -0,0 +1,398 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.parworks.androidlibrary.utils.NamedThreadFactory;
+import com.parworks.androidlibrary.utils.RequestContext;
+
+/**
+ * Augments a live stream of camera frames against a site. Frames can be
+ * offered at camera rate; at most a fixed number are augmented at once, and
+ * of the frames waiting only the newest is kept, so overlays lag the camera
+ * by about one server round trip however fast frames arrive.
+ *
+ * Frames are also spaced out according to the observed time from upload to
+ * result, so that the frames in flight are spread over a round trip rather
+ * than sent in a burst. A result older than one already delivered is
+ * dropped.
+ *
+ * With a FrameSimilarityGate set, a frame that looks the same as the last
+ * augmented frame reuses its result instead of being uploaded.
+ *
+ * Results are delivered on a polling thread. Get a session from
+ * ARSite.startAugmentSession and close it when the camera stops.
+ *
+ * Example:
+ *
+ *     AugmentSession session = site.startAugmentSession(2,
+ *             new ARListener<AugmentedData>() {
+ *                 public void handleResponse(AugmentedData data) {
+ *                     // draw the overlays
+ *                 }
+ *             }, null);
+ *     // for each camera frame
+ *     session.offerFrame(new ByteArrayInputStream(jpeg));
+ *     // when the camera stops
+ *     session.close();
+ */
+public class AugmentSession {
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+	// weight of the newest observation in the latency average
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private final ARSite mSite;
+	private final int mMaxInFlight;
+	private final ARListener<AugmentedData> mListener;
+	private final ARErrorListener mErrorListener;
+	private final ExecutorService mUploads;
+	// cancelled by close, which aborts the uploads in flight
+	private final CancellationToken mToken = new CancellationToken();
+	private final Set<ARFuture<AugmentedData>> mPolls = new HashSet<ARFuture<AugmentedData>>();
+	private volatile FrameSimilarityGate mSimilarityGate;
+
+	private InputStream mPendingFrame;
+	private int mInFlight;
+	private long mLastSubmitMillis;
+	private double mAverageLatencyMillis;
+	private long mNextSequence;
+	private long mLastDeliveredSequence = -1;
+	private boolean mClosed;
+
+	private long mSubmittedCount;
+	private long mReusedCount;
+	private long mCompletedCount;
+	private long mDroppedCount;
+	private long mFailedCount;
+
+	/**
+	 * @param site
+	 *            the site to augment frames against
+	 * @param maxInFlight
+	 *            the most frames being augmented at once
+	 * @param listener
+	 *            called with the result of each frame that is not superseded
+	 * @param onErrorListener
+	 *            called when a frame fails. May be null.
+	 */
+	public AugmentSession(ARSite site, int maxInFlight,
+			ARListener<AugmentedData> listener, ARErrorListener onErrorListener) {
+		mSite = site;
+		mMaxInFlight = maxInFlight;
+		mListener = listener;
+		mErrorListener = onErrorListener;
+		mUploads = Executors.newFixedThreadPool(maxInFlight,
+				new NamedThreadFactory("augment-session"));
+	}
+
+	/**
+	 * Sets the gate that lets frames reuse the result of a similar frame.
+	 * 
+	 * @param gate
+	 *            the gate, or null to augment every frame sent
+	 */
+	public void setSimilarityGate(FrameSimilarityGate gate) {
+		mSimilarityGate = gate;
+	}
+
+	public FrameSimilarityGate getSimilarityGate() {
+		return mSimilarityGate;
+	}
+
+	/**
+	 * Offers a frame to be augmented. It is sent now if the session has room,
+	 * otherwise it replaces the frame waiting to be sent, if any, which is
+	 * dropped.
+	 *
+	 * @param frame
+	 *            the frame, for example a JPEG. It is closed once it is sent
+	 *            or dropped.
+	 */
+	public void offerFrame(InputStream frame) {
+		InputStream dropped;
+		synchronized (this) {
+			if (mClosed) {
+				dropped = frame;
+			} else {
+				dropped = mPendingFrame;
+				mPendingFrame = frame;
+			}
+			if (dropped != null) {
+				mDroppedCount++;
+			}
+			submitPending();
+		}
+		closeQuietly(dropped);
+	}
+
+	/**
+	 * Stops the session. The waiting frame is dropped, the uploads and result
+	 * polls of frames in flight are cancelled and their results are not
+	 * delivered.
+	 */
+	public void close() {
+		InputStream dropped;
+		List<ARFuture<AugmentedData>> polls;
+		synchronized (this) {
+			mClosed = true;
+			dropped = mPendingFrame;
+			mPendingFrame = null;
+			if (dropped != null) {
+				mDroppedCount++;
+			}
+			polls = new ArrayList<ARFuture<AugmentedData>>(mPolls);
+			mPolls.clear();
+		}
+		closeQuietly(dropped);
+		mUploads.shutdown();
+		mToken.cancel();
+		for (ARFuture<AugmentedData> poll : polls) {
+			if (poll.cancel(false)) {
+				// its listeners will not be called
+				synchronized (this) {
+					mInFlight--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the average time from sending a frame to receiving its result
+	 */
+	public synchronized long getAverageLatencyMillis() {
+		return (long) mAverageLatencyMillis;
+	}
+
+	public synchronized int getInFlightCount() {
+		return mInFlight;
+	}
+
+	/**
+	 * @return the number of frames uploaded to be augmented
+	 */
+	public synchronized long getSubmittedCount() {
+		return mSubmittedCount;
+	}
+
+	/**
+	 * @return the number of frames that reused the result of an earlier frame
+	 *         through the similarity gate instead of being uploaded
+	 */
+	public synchronized long getReusedCount() {
+		return mReusedCount;
+	}
+
+	/**
+	 * @return the number of results delivered to the listener
+	 */
+	public synchronized long getCompletedCount() {
+		return mCompletedCount;
+	}
+
+	/**
+	 * @return the number of frames replaced before they were sent, plus the
+	 *         results dropped because a newer one had already been delivered
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	public synchronized long getFailedCount() {
+		return mFailedCount;
+	}
+
+	/**
+	 * Sends the waiting frame if fewer than the maximum are in flight and
+	 * enough time has passed since the last one was sent.
+	 */
+	private void submitPending() {
+		if (mClosed || mPendingFrame == null || mInFlight >= mMaxInFlight) {
+			return;
+		}
+		long now = now();
+		if (mInFlight > 0
+				&& now - mLastSubmitMillis < mAverageLatencyMillis / mMaxInFlight) {
+			// a later frame or a result will send it
+			return;
+		}
+		final InputStream frame = mPendingFrame;
+		final long sequence = mNextSequence++;
+		final long submitted = now;
+		mPendingFrame = null;
+		mInFlight++;
+		mLastSubmitMillis = now;
+		mUploads.execute(new Runnable() {
+			@Override
+			public void run() {
+				augment(frame, sequence, submitted);
+			}
+		});
+	}
+
+	private void augment(InputStream frame, final long sequence,
+			final long submitted) {
+		final FrameSimilarityGate gate = mSimilarityGate;
+		final Long hash;
+		InputStream upload = frame;
+		final ARFuture<AugmentedData> poll;
+		RequestContext previous = RequestContext.attach(new RequestContext(mToken));
+		try {
+			if (gate != null) {
+				byte[] encoded = readFully(frame);
+				hash = FrameSimilarityGate.tryHash(encoded, 0, encoded.length);
+				AugmentedData reused = hash == null ? null : gate.check(hash);
+				if (reused != null) {
+					synchronized (this) {
+						mReusedCount++;
+					}
+					completed(reused, sequence, -1);
+					return;
+				}
+				upload = new ByteArrayInputStream(encoded);
+			} else {
+				hash = null;
+			}
+			synchronized (this) {
+				mSubmittedCount++;
+			}
+			poll = mSite.pollAugmentResult(mSite.startImageAugment(upload));
+		} catch (Exception e) {
+			failed(e);
+			return;
+		} finally {
+			RequestContext.restore(previous);
+			closeQuietly(frame);
+		}
+		synchronized (this) {
+			if (mClosed) {
+				// close has already cancelled the polls it knew of
+				if (poll.cancel(false)) {
+					mInFlight--;
+				}
+				return;
+			}
+			mPolls.add(poll);
+		}
+		poll.addListener(
+				new ARListener<AugmentedData>() {
+					@Override
+					public void handleResponse(AugmentedData result) {
+						if (hash != null) {
+							gate.update(hash, result);
+						}
+						completed(result, sequence, submitted);
+					}
+				}, new ARErrorListener() {
+					@Override
+					public void handleError(Exception error) {
+						failed(error);
+					}
+				});
+	}
+
+	/**
+	 * @param submitted
+	 *            when the frame was sent, or -1 if it reused an earlier result
+	 *            and so says nothing about the latency
+	 */
+	private void completed(AugmentedData result, long sequence, long submitted) {
+		boolean deliver;
+		synchronized (this) {
+			mInFlight--;
+			removeFinishedPolls();
+			if (submitted >= 0) {
+				long latency = now() - submitted;
+				if (mAverageLatencyMillis == 0) {
+					mAverageLatencyMillis = latency;
+				} else {
+					mAverageLatencyMillis = LATENCY_WEIGHT * latency
+							+ (1 - LATENCY_WEIGHT) * mAverageLatencyMillis;
+				}
+			}
+			deliver = !mClosed && sequence > mLastDeliveredSequence;
+			if (deliver) {
+				mLastDeliveredSequence = sequence;
+				mCompletedCount++;
+			} else {
+				mDroppedCount++;
+			}
+			submitPending();
+		}
+		if (deliver) {
+			mListener.handleResponse(result);
+		}
+	}
+
+	private void failed(Exception error) {
+		boolean deliver;
+		synchronized (this) {
+			mInFlight--;
+			removeFinishedPolls();
+			mFailedCount++;
+			deliver = !mClosed;
+			submitPending();
+		}
+		if (deliver && mErrorListener != null) {
+			mErrorListener.handleError(error);
+		}
+	}
+
+	// no more polls are held than frames are in flight, so scanning is cheap
+	private void removeFinishedPolls() {
+		Iterator<ARFuture<AugmentedData>> polls = mPolls.iterator();
+		while (polls.hasNext()) {
+			if (polls.next().isDone()) {
+				polls.remove();
+			}
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+		byte[] buffer = new byte[8 * 1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static void closeQuietly(InputStream frame) {
+		if (frame == null) {
+			return;
+		}
+		try {
+			frame.close();
+		} catch (Exception e) {
+			// nothing more will be read from it
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
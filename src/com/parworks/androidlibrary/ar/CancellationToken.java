@@ -0,0 +1,96 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Returned by the asynchronous calls so they can be stopped, for example when
+ * the user navigates away. Cancelling aborts the HTTP request in flight,
+ * stops polling for results and suppresses the callbacks, none of which are
+ * called afterwards.
+ *
+ * Work running on the caller's behalf finds the token through
+ * RequestContext and registers cancel listeners to stop itself.
+ */
+public class CancellationToken {
+
+	private boolean mCancelled;
+	private List<Runnable> mListeners = new ArrayList<Runnable>();
+
+	/**
+	 * Cancels the call. Does nothing if it was already cancelled.
+	 */
+	public void cancel() {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (mCancelled) {
+				return;
+			}
+			mCancelled = true;
+			listeners = mListeners;
+			mListeners = null;
+		}
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @throws ARException
+	 *             if the call has been cancelled
+	 */
+	public void throwIfCancelled() {
+		if (isCancelled()) {
+			throw cancelled();
+		}
+	}
+
+	/**
+	 * Runs a listener on the thread that cancels the call, or immediately if
+	 * it has already been cancelled. The listener should only stop work, for
+	 * example abort a request, and return.
+	 */
+	public void addCancelListener(Runnable listener) {
+		synchronized (this) {
+			if (!mCancelled) {
+				mListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Removes a listener once the work it stops has finished.
+	 */
+	public synchronized void removeCancelListener(Runnable listener) {
+		if (mListeners != null) {
+			mListeners.remove(listener);
+		}
+	}
+
+	/**
+	 * @return the exception thrown by work that stops because it was
+	 *         cancelled
+	 */
+	static ARException cancelled() {
+		return new ARException("The request was cancelled.");
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.parworks.androidlibrary.utils.ImageResampler;
+import com.parworks.androidlibrary.utils.PerceptualHash;
+
+/**
+ * Skips augmenting frames that look the same as the last frame that was
+ * augmented. When the device is nearly still consecutive camera frames are
+ * alike, and each would otherwise cost an upload and a localization on the
+ * server for the same result.
+ *
+ * Frames are compared by their perceptual hash. A frame within the distance
+ * threshold of the last augmented frame reuses its result, as long as that
+ * result is younger than the age limit. Frames are always compared with the
+ * last augmented frame rather than the previous frame, so slow drift is
+ * caught.
+ *
+ * Set a gate on an AugmentSession, or on an ARSiteImpl for augmentImage,
+ * with setSimilarityGate.
+ */
+public class FrameSimilarityGate {
+
+	public static final int DEFAULT_MAX_DISTANCE = 5;
+	public static final long DEFAULT_MAX_AGE_MILLIS = 5 * 1000;
+
+	// frames are decoded to about this long edge to be hashed
+	private static final int HASH_DECODE_EDGE = 64;
+
+	private int mMaxDistance = DEFAULT_MAX_DISTANCE;
+	private long mMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+	private long mReferenceHash;
+	private AugmentedData mReferenceResult;
+	private long mReferenceTime;
+
+	private long mHitCount;
+	private long mMissCount;
+
+	/**
+	 * @param maxDistance
+	 *            the most bits a frame's hash may differ from the last
+	 *            augmented frame's and still reuse its result. 0 reuses only
+	 *            for practically identical frames.
+	 * @param maxAgeMillis
+	 *            how long a result may be reused
+	 */
+	public synchronized void setThresholds(int maxDistance, long maxAgeMillis) {
+		mMaxDistance = maxDistance;
+		mMaxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Returns the result of the last augmented frame if the frame with the
+	 * given hash looks the same.
+	 *
+	 * @return the result to reuse, or null if the frame should be augmented
+	 */
+	public synchronized AugmentedData check(long hash) {
+		if (mReferenceResult != null
+				&& now() - mReferenceTime < mMaxAgeMillis
+				&& PerceptualHash.distance(hash, mReferenceHash) <= mMaxDistance) {
+			mHitCount++;
+			return mReferenceResult;
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Records the result of an augmented frame, which later frames are
+	 * compared with.
+	 */
+	public synchronized void update(long hash, AugmentedData result) {
+		mReferenceHash = hash;
+		mReferenceResult = result;
+		mReferenceTime = now();
+	}
+
+	/**
+	 * Forgets the last augmented frame, for example when the overlays of the
+	 * site change.
+	 */
+	public synchronized void reset() {
+		mReferenceResult = null;
+	}
+
+	/**
+	 * @return the number of frames that reused a result
+	 */
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return the number of frames that had to be augmented
+	 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return the perceptual hash of an encoded frame, or null if it can't be
+	 *         decoded, in which case the frame is augmented without the gate
+	 */
+	static Long tryHash(byte[] encoded, int offset, int length) {
+		try {
+			return hash(encoded, offset, length);
+		} catch (ARException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Computes the perceptual hash of an encoded frame, decoding only as much
+	 * of it as the hash needs.
+	 *
+	 * @throws ARException
+	 *             if the frame can't be decoded
+	 */
+	public static long hash(byte[] encoded, int offset, int length) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(encoded, offset, length, options);
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = ImageResampler.sampleSize(options.outWidth,
+				options.outHeight, HASH_DECODE_EDGE);
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		Bitmap bitmap = BitmapFactory.decodeByteArray(encoded, offset, length,
+				options);
+		if (bitmap == null) {
+			throw new ARException("The frame could not be decoded.");
+		}
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		if (Math.min(width, height) < PerceptualHash.getMinimumSize()) {
+			bitmap.recycle();
+			throw new ARException("The frame is too small to compare: " + width
+					+ "x" + height);
+		}
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		bitmap.recycle();
+		return PerceptualHash.dHash(pixels, width, height);
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
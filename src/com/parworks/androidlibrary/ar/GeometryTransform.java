@@ -0,0 +1,216 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+/**
+ * An immutable 2D affine transform, used to map overlay geometry from base
+ * image coordinates to view coordinates. A point (x, y) maps to
+ *
+ *     x' = a * x + c * y + tx
+ *     y' = b * x + d * y + ty
+ *
+ * Transforms never modify the geometry they are applied to; results are
+ * written to a caller owned array so it can be reused from frame to frame.
+ *
+ * Example, fitting a 2000x1500 base image into a 800x600 view and panning it:
+ *
+ *     List<ImageOverlayInfo> overlays = site.getSiteOverlays(siteId);
+ *     GeometryTransform toView = GeometryTransform.scale(0.4f, 0.4f)
+ *             .then(GeometryTransform.translate(panX, panY));
+ *     viewCoordinates = toView.apply(overlays.get(0).getGeometry(),
+ *             viewCoordinates);
+ */
+public final class GeometryTransform {
+
+	public static final GeometryTransform IDENTITY = new GeometryTransform(1,
+			0, 0, 1, 0, 0);
+
+	private final float mA;
+	private final float mB;
+	private final float mC;
+	private final float mD;
+	private final float mTx;
+	private final float mTy;
+
+	public GeometryTransform(float a, float b, float c, float d, float tx,
+			float ty) {
+		mA = a;
+		mB = b;
+		mC = c;
+		mD = d;
+		mTx = tx;
+		mTy = ty;
+	}
+
+	public static GeometryTransform scale(float sx, float sy) {
+		return new GeometryTransform(sx, 0, 0, sy, 0, 0);
+	}
+
+	public static GeometryTransform translate(float tx, float ty) {
+		return new GeometryTransform(1, 0, 0, 1, tx, ty);
+	}
+
+	/**
+	 * @param radians
+	 *            the rotation about the origin, clockwise in view coordinates
+	 *            where y points down
+	 */
+	public static GeometryTransform rotate(double radians) {
+		float cos = (float) Math.cos(radians);
+		float sin = (float) Math.sin(radians);
+		return new GeometryTransform(cos, sin, -sin, cos, 0, 0);
+	}
+
+	/**
+	 * Rotates about the point (px, py).
+	 */
+	public static GeometryTransform rotate(double radians, float px, float py) {
+		return translate(-px, -py).then(rotate(radians)).then(translate(px, py));
+	}
+
+	/**
+	 * Returns a transform that applies this transform and then next.
+	 */
+	public GeometryTransform then(GeometryTransform next) {
+		return new GeometryTransform(
+				next.mA * mA + next.mC * mB,
+				next.mB * mA + next.mD * mB,
+				next.mA * mC + next.mC * mD,
+				next.mB * mC + next.mD * mD,
+				next.mA * mTx + next.mC * mTy + next.mTx,
+				next.mB * mTx + next.mD * mTy + next.mTy);
+	}
+
+	/**
+	 * Returns the inverse transform, for example to map a touch in view
+	 * coordinates back to base image coordinates.
+	 *
+	 * @throws ARException
+	 *             if the transform is not invertible
+	 */
+	public GeometryTransform invert() {
+		float determinant = mA * mD - mB * mC;
+		if (determinant == 0) {
+			throw new ARException("The transform is not invertible.");
+		}
+		float a = mD / determinant;
+		float b = -mB / determinant;
+		float c = -mC / determinant;
+		float d = mA / determinant;
+		return new GeometryTransform(a, b, c, d, -(a * mTx + c * mTy),
+				-(b * mTx + d * mTy));
+	}
+
+	public float getA() {
+		return mA;
+	}
+
+	public float getB() {
+		return mB;
+	}
+
+	public float getC() {
+		return mC;
+	}
+
+	public float getD() {
+		return mD;
+	}
+
+	public float getTx() {
+		return mTx;
+	}
+
+	public float getTy() {
+		return mTy;
+	}
+
+	public float mapX(float x, float y) {
+		return mA * x + mC * y + mTx;
+	}
+
+	public float mapY(float x, float y) {
+		return mB * x + mD * y + mTy;
+	}
+
+	/**
+	 * Transforms every point of every polygon in the geometry.
+	 *
+	 * @param geometry
+	 *            the geometry to transform. It is not modified.
+	 * @param dst
+	 *            the array to write to, laid out like
+	 *            geometry.getCoordinates(). If it is null or too small a new
+	 *            array is allocated.
+	 * @return the array the transformed points were written to
+	 */
+	public float[] apply(PackedGeometry geometry, float[] dst) {
+		int length = geometry.getPointCount() * geometry.getStride();
+		if (dst == null || dst.length < length) {
+			dst = new float[length];
+		}
+		apply(geometry.getCoordinates(), 0, dst, 0, geometry.getPointCount(),
+				geometry.getStride());
+		return dst;
+	}
+
+	/**
+	 * Transforms packed points. Any components after x and y, such as z, are
+	 * copied unchanged. src and dst may be the same array.
+	 *
+	 * @param src
+	 *            the points to transform
+	 * @param srcOffset
+	 *            the index of the first point's x in src
+	 * @param dst
+	 *            where to write the transformed points
+	 * @param dstOffset
+	 *            the index of the first point's x in dst
+	 * @param pointCount
+	 *            the number of points
+	 * @param stride
+	 *            the number of floats per point, at least 2
+	 */
+	public void apply(float[] src, int srcOffset, float[] dst, int dstOffset,
+			int pointCount, int stride) {
+		final float a = mA, b = mB, c = mC, d = mD, tx = mTx, ty = mTy;
+		int s = srcOffset;
+		int t = dstOffset;
+		int end = srcOffset + pointCount * stride;
+		if (stride == 2) {
+			for (; s < end; s += 2, t += 2) {
+				float x = src[s];
+				float y = src[s + 1];
+				dst[t] = a * x + c * y + tx;
+				dst[t + 1] = b * x + d * y + ty;
+			}
+		} else {
+			for (; s < end; s += stride, t += stride) {
+				float x = src[s];
+				float y = src[s + 1];
+				dst[t] = a * x + c * y + tx;
+				dst[t + 1] = b * x + d * y + ty;
+				for (int k = 2; k < stride; k++) {
+					dst[t + k] = src[s + k];
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[" + mA + ", " + mC + ", " + mTx + "; " + mB + ", " + mD + ", "
+				+ mTy + "]";
+	}
+}
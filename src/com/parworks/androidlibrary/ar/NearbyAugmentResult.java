@@ -0,0 +1,60 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+/**
+ * The result of augmenting an image: the augmented data and, when it is
+ * known, the site the image matched. A proximity search result has no site
+ * when the server's response does not name it.
+ */
+public class NearbyAugmentResult {
+
+	private final ARSite mSite;
+	private final AugmentedData mAugmentedData;
+
+	/**
+	 * @param site
+	 *            the matched site, or null if it is not known
+	 */
+	public NearbyAugmentResult(ARSite site, AugmentedData augmentedData) {
+		mSite = site;
+		mAugmentedData = augmentedData;
+	}
+
+	/**
+	 * @return whether the matched site is known
+	 */
+	public boolean hasSite() {
+		return mSite != null;
+	}
+
+	/**
+	 * @return the id of the matched site, or null if it is not known
+	 */
+	public String getSiteId() {
+		return mSite == null ? null : mSite.getSiteId();
+	}
+
+	/**
+	 * @return the matched site, which can augment further images directly,
+	 *         or null if it is not known
+	 */
+	public ARSite getSite() {
+		return mSite;
+	}
+
+	public AugmentedData getAugmentedData() {
+		return mAugmentedData;
+	}
+}
@@ -14,28 +14,77 @@
 package com.parworks.androidlibrary.ar;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 
 @SuppressWarnings("serial")
 public class OverlayImpl implements Overlay, Serializable {
 	
+	/** Number of floats per vertex in the packed buffer: x, y and z */
+	public static final int FLOATS_PER_VERTEX = 3;
+	
 	private String mImageId;
 	private String mName;
 	private String mDescription;
-	private List<Vertex> mVertices;
+	private PackedGeometry mGeometry;
+	private int mPolygon;
+	private transient List<Vertex> mVertices;
 	
 	public OverlayImpl(BaseImage imageId, String name, String description, List<Vertex> vertices) {
-		mImageId = imageId.getBaseImageId();
+		this(imageId.getBaseImageId(), name, description, vertices);
+	}
+	
+	public OverlayImpl(String imageId, String name, String description, List<Vertex> vertices) {
+		mImageId = imageId;
 		mName = name;
 		mDescription = description;
-		mVertices = vertices;
+		mGeometry = new PackedGeometry(FLOATS_PER_VERTEX, vertices.size(), 1);
+		mGeometry.beginPolygon();
+		for (Vertex vertex : vertices) {
+			mGeometry.addPoint(vertex.getxCoord(), vertex.getyCoord(), vertex.getzCoord());
+		}
+		mGeometry.endPolygon();
+		mPolygon = 0;
 	}
 	
-	public OverlayImpl(String imageId, String name, String description, List<Vertex> vertices) {
+	/**
+	 * Creates an overlay whose vertices live in a packed buffer, stored as
+	 * consecutive x, y, z floats. The buffer is not copied.
+	 * 
+	 * @param vertexBuffer
+	 *            the packed vertices
+	 * @param vertexOffset
+	 *            index in vertexBuffer of the first vertex's x coordinate
+	 * @param vertexCount
+	 *            the number of vertices
+	 */
+	public OverlayImpl(String imageId, String name, String description,
+			float[] vertexBuffer, int vertexOffset, int vertexCount) {
+		this(imageId, name, description, PackedGeometry.wrap(vertexBuffer,
+				FLOATS_PER_VERTEX, new int[] { vertexOffset / FLOATS_PER_VERTEX,
+						vertexOffset / FLOATS_PER_VERTEX + vertexCount }), 0);
+	}
+	
+	/**
+	 * Creates an overlay backed by one polygon of a geometry that may hold
+	 * many overlays, for example every overlay of one augment result. The
+	 * geometry must have a stride of 3.
+	 * 
+	 * @param geometry
+	 *            the shared geometry
+	 * @param polygon
+	 *            the index of this overlay's polygon in the geometry
+	 */
+	public OverlayImpl(String imageId, String name, String description,
+			PackedGeometry geometry, int polygon) {
+		if (geometry.getStride() != FLOATS_PER_VERTEX) {
+			throw new IllegalArgumentException("Overlay geometry must store x,y,z vertices");
+		}
 		mImageId = imageId;
 		mName = name;
 		mDescription = description;
-		mVertices = vertices;
+		mGeometry = geometry;
+		mPolygon = polygon;
 	}
 
 	@Override
@@ -53,9 +102,61 @@ public class OverlayImpl implements Overlay, Serializable {
 		return mDescription;
 	}
 
+	/**
+	 * Returns a copy of the vertices as Vertex objects, created the first time
+	 * it is asked for. Prefer getGeometry() or getVertexBuffer() on hot paths.
+	 */
 	@Override
 	public List<Vertex> getVertices() {
+		if (mVertices == null) {
+			int first = mGeometry.getFirstPoint(mPolygon);
+			int end = first + mGeometry.getPointCount(mPolygon);
+			List<Vertex> vertices = new ArrayList<Vertex>(end - first);
+			for (int i = first; i < end; i++) {
+				vertices.add(new Vertex(mGeometry.getX(i), mGeometry.getY(i),
+						mGeometry.getZ(i)));
+			}
+			mVertices = vertices;
+		}
 		return mVertices;
 	}
+	
+	/**
+	 * @return the geometry holding this overlay's vertices. It may be shared
+	 *         with other overlays; see getPolygon().
+	 */
+	public PackedGeometry getGeometry() {
+		return mGeometry;
+	}
+	
+	/**
+	 * @return the index of this overlay's polygon in getGeometry()
+	 */
+	public int getPolygon() {
+		return mPolygon;
+	}
+	
+	/**
+	 * Returns the packed vertex buffer, as consecutive x, y, z floats starting
+	 * at getVertexOffset(). The buffer may be shared with other overlays and
+	 * must not be modified.
+	 */
+	public float[] getVertexBuffer() {
+		return mGeometry.getCoordinates();
+	}
+	
+	/**
+	 * @return the index in getVertexBuffer() of the first vertex
+	 */
+	public int getVertexOffset() {
+		return mGeometry.getFirstPoint(mPolygon) * FLOATS_PER_VERTEX;
+	}
+	
+	/**
+	 * @return the number of vertices in this overlay
+	 */
+	public int getVertexCount() {
+		return mGeometry.getPointCount(mPolygon);
+	}
 
 }
@@ -0,0 +1,344 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.parworks.androidlibrary.response.ImageOverlayInfo;
+
+/**
+ * Finds the overlays of one image that contain a point, for example to find
+ * which overlay the user tapped. Each overlay's bounding box is placed in a
+ * uniform grid, so a lookup only tests the few overlays whose boxes share the
+ * touched cell, and then tests the polygon itself exactly. Lookups do not
+ * allocate, so they can be made for every touch move.
+ *
+ * Coordinates are those of the overlay geometry, i.e. base image or augmented
+ * image pixels. Map view coordinates back with GeometryTransform.invert().
+ *
+ * Example:
+ *
+ *     Map<String, OverlayIndex<ImageOverlayInfo>> indexes =
+ *             OverlayIndex.fromSiteOverlays(site.getSiteOverlays(siteId));
+ *     ImageOverlayInfo tapped = indexes.get(imageId).hitTest(x, y);
+ *
+ * @param <T>
+ *            the overlay type returned by hit tests
+ */
+public class OverlayIndex<T> {
+
+	private static final int MAX_CELLS_PER_AXIS = 256;
+	private static final float MIN_CELL_SIZE = 1e-3f;
+
+	private final List<T> mOverlays;
+	private final PackedGeometry[] mGeometries;
+	private final int[] mPolygons;
+	// minX, minY, maxX, maxY for each overlay
+	private final float[] mBounds;
+
+	private float mGridMinX;
+	private float mGridMinY;
+	private float mCellWidth;
+	private float mCellHeight;
+	private int mColumns;
+	private int mRows;
+	// entries of cell i are mCellEntries[mCellStarts[i]] up to mCellStarts[i + 1]
+	private int[] mCellStarts;
+	private int[] mCellEntries;
+
+	private OverlayIndex(List<T> overlays, List<PackedGeometry> geometries,
+			int[] polygons) {
+		mOverlays = overlays;
+		mGeometries = geometries.toArray(new PackedGeometry[geometries.size()]);
+		mPolygons = polygons;
+		mBounds = new float[overlays.size() * 4];
+		computeBounds();
+		buildGrid();
+	}
+
+	/**
+	 * Builds one index per image from the result of ARSite.getSiteOverlays.
+	 *
+	 * @return the indexes keyed by image id
+	 */
+	public static Map<String, OverlayIndex<ImageOverlayInfo>> fromSiteOverlays(
+			List<ImageOverlayInfo> overlays) {
+		Map<String, List<ImageOverlayInfo>> byImage = new HashMap<String, List<ImageOverlayInfo>>();
+		for (ImageOverlayInfo overlay : overlays) {
+			if (overlay.getGeometry() == null) {
+				continue;
+			}
+			List<ImageOverlayInfo> imageOverlays = byImage.get(overlay.getImageId());
+			if (imageOverlays == null) {
+				imageOverlays = new ArrayList<ImageOverlayInfo>();
+				byImage.put(overlay.getImageId(), imageOverlays);
+			}
+			imageOverlays.add(overlay);
+		}
+
+		Map<String, OverlayIndex<ImageOverlayInfo>> indexes = new HashMap<String, OverlayIndex<ImageOverlayInfo>>();
+		for (Map.Entry<String, List<ImageOverlayInfo>> entry : byImage.entrySet()) {
+			List<ImageOverlayInfo> imageOverlays = entry.getValue();
+			List<PackedGeometry> geometries = new ArrayList<PackedGeometry>(imageOverlays.size());
+			int[] polygons = new int[imageOverlays.size()];
+			for (int i = 0; i < imageOverlays.size(); i++) {
+				geometries.add(imageOverlays.get(i).getGeometry());
+				polygons[i] = imageOverlays.get(i).getPolygon();
+			}
+			indexes.put(entry.getKey(), new OverlayIndex<ImageOverlayInfo>(
+					imageOverlays, geometries, polygons));
+		}
+		return indexes;
+	}
+
+	/**
+	 * Builds an index of the overlays found in an augmented image.
+	 */
+	public static OverlayIndex<Overlay> fromAugmentedData(AugmentedData data) {
+		return fromOverlays(data.getOverlays());
+	}
+
+	/**
+	 * Builds an index of overlays that all belong to the same image.
+	 */
+	public static OverlayIndex<Overlay> fromOverlays(List<Overlay> overlays) {
+		List<PackedGeometry> geometries = new ArrayList<PackedGeometry>(overlays.size());
+		int[] polygons = new int[overlays.size()];
+		for (int i = 0; i < overlays.size(); i++) {
+			Overlay overlay = overlays.get(i);
+			if (overlay instanceof OverlayImpl) {
+				geometries.add(((OverlayImpl) overlay).getGeometry());
+				polygons[i] = ((OverlayImpl) overlay).getPolygon();
+			} else {
+				List<Vertex> vertices = overlay.getVertices();
+				PackedGeometry geometry = new PackedGeometry(
+						OverlayImpl.FLOATS_PER_VERTEX, vertices.size(), 1);
+				geometry.beginPolygon();
+				for (Vertex vertex : vertices) {
+					geometry.addPoint(vertex.getxCoord(), vertex.getyCoord(),
+							vertex.getzCoord());
+				}
+				geometry.endPolygon();
+				geometries.add(geometry);
+				polygons[i] = 0;
+			}
+		}
+		return new OverlayIndex<Overlay>(overlays, geometries, polygons);
+	}
+
+	public int size() {
+		return mOverlays.size();
+	}
+
+	/**
+	 * Returns the first overlay, in the order the index was built from, whose
+	 * polygon contains the point.
+	 *
+	 * @return the overlay, or null if no overlay contains the point
+	 */
+	public T hitTest(float x, float y) {
+		int cell = cellAt(x, y);
+		if (cell < 0) {
+			return null;
+		}
+		int best = -1;
+		for (int i = mCellStarts[cell]; i < mCellStarts[cell + 1]; i++) {
+			int overlay = mCellEntries[i];
+			if ((best < 0 || overlay < best) && contains(overlay, x, y)) {
+				best = overlay;
+			}
+		}
+		return best < 0 ? null : mOverlays.get(best);
+	}
+
+	/**
+	 * Adds every overlay whose polygon contains the point to result.
+	 *
+	 * @return the number of overlays added
+	 */
+	public int hitTestAll(float x, float y, List<T> result) {
+		int cell = cellAt(x, y);
+		if (cell < 0) {
+			return 0;
+		}
+		int found = 0;
+		for (int i = mCellStarts[cell]; i < mCellStarts[cell + 1]; i++) {
+			int overlay = mCellEntries[i];
+			if (contains(overlay, x, y)) {
+				result.add(mOverlays.get(overlay));
+				found++;
+			}
+		}
+		return found;
+	}
+
+	private boolean contains(int overlay, float x, float y) {
+		int b = overlay * 4;
+		if (x < mBounds[b] || y < mBounds[b + 1] || x > mBounds[b + 2]
+				|| y > mBounds[b + 3]) {
+			return false;
+		}
+		return polygonContains(mGeometries[overlay], mPolygons[overlay], x, y);
+	}
+
+	/**
+	 * Even-odd test of whether a point lies inside a polygon of a geometry.
+	 */
+	public static boolean polygonContains(PackedGeometry geometry, int polygon,
+			float x, float y) {
+		int count = geometry.getPointCount(polygon);
+		if (count < 3) {
+			return false;
+		}
+		float[] coordinates = geometry.getCoordinates();
+		int stride = geometry.getStride();
+		int first = geometry.getFirstPoint(polygon) * stride;
+		boolean inside = false;
+		int j = first + (count - 1) * stride;
+		for (int i = first; i < first + count * stride; i += stride) {
+			float xi = coordinates[i];
+			float yi = coordinates[i + 1];
+			float xj = coordinates[j];
+			float yj = coordinates[j + 1];
+			if ((yi > y) != (yj > y)
+					&& x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+				inside = !inside;
+			}
+			j = i;
+		}
+		return inside;
+	}
+
+	private void computeBounds() {
+		for (int overlay = 0; overlay < mGeometries.length; overlay++) {
+			PackedGeometry geometry = mGeometries[overlay];
+			int polygon = mPolygons[overlay];
+			float minX = Float.POSITIVE_INFINITY;
+			float minY = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY;
+			float maxY = Float.NEGATIVE_INFINITY;
+			int first = geometry.getFirstPoint(polygon);
+			int end = first + geometry.getPointCount(polygon);
+			for (int point = first; point < end; point++) {
+				float x = geometry.getX(point);
+				float y = geometry.getY(point);
+				minX = Math.min(minX, x);
+				minY = Math.min(minY, y);
+				maxX = Math.max(maxX, x);
+				maxY = Math.max(maxY, y);
+			}
+			int b = overlay * 4;
+			mBounds[b] = minX;
+			mBounds[b + 1] = minY;
+			mBounds[b + 2] = maxX;
+			mBounds[b + 3] = maxY;
+		}
+	}
+
+	private void buildGrid() {
+		float minX = Float.POSITIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY;
+		float maxY = Float.NEGATIVE_INFINITY;
+		int indexed = 0;
+		for (int overlay = 0; overlay < mGeometries.length; overlay++) {
+			int b = overlay * 4;
+			if (mBounds[b] > mBounds[b + 2]) {
+				// an overlay without points can never be hit
+				continue;
+			}
+			minX = Math.min(minX, mBounds[b]);
+			minY = Math.min(minY, mBounds[b + 1]);
+			maxX = Math.max(maxX, mBounds[b + 2]);
+			maxY = Math.max(maxY, mBounds[b + 3]);
+			indexed++;
+		}
+		if (indexed == 0) {
+			mColumns = 0;
+			mRows = 0;
+			mCellStarts = new int[1];
+			mCellEntries = new int[0];
+			return;
+		}
+
+		// about one overlay per cell on average
+		int cellsPerAxis = (int) Math.ceil(Math.sqrt(indexed));
+		cellsPerAxis = Math.max(1, Math.min(cellsPerAxis, MAX_CELLS_PER_AXIS));
+		mGridMinX = minX;
+		mGridMinY = minY;
+		mColumns = cellsPerAxis;
+		mRows = cellsPerAxis;
+		mCellWidth = Math.max((maxX - minX) / mColumns, MIN_CELL_SIZE);
+		mCellHeight = Math.max((maxY - minY) / mRows, MIN_CELL_SIZE);
+
+		// count, then fill, so the cells are stored in two flat arrays
+		int[] counts = new int[mColumns * mRows];
+		for (int pass = 0; pass < 2; pass++) {
+			for (int overlay = 0; overlay < mGeometries.length; overlay++) {
+				int b = overlay * 4;
+				if (mBounds[b] > mBounds[b + 2]) {
+					continue;
+				}
+				int firstColumn = column(mBounds[b]);
+				int lastColumn = column(mBounds[b + 2]);
+				int firstRow = row(mBounds[b + 1]);
+				int lastRow = row(mBounds[b + 3]);
+				for (int r = firstRow; r <= lastRow; r++) {
+					for (int c = firstColumn; c <= lastColumn; c++) {
+						int cell = r * mColumns + c;
+						if (pass == 0) {
+							counts[cell]++;
+						} else {
+							mCellEntries[mCellStarts[cell] + counts[cell]++] = overlay;
+						}
+					}
+				}
+			}
+			if (pass == 0) {
+				mCellStarts = new int[counts.length + 1];
+				for (int cell = 0; cell < counts.length; cell++) {
+					mCellStarts[cell + 1] = mCellStarts[cell] + counts[cell];
+					counts[cell] = 0;
+				}
+				mCellEntries = new int[mCellStarts[counts.length]];
+			}
+		}
+	}
+
+	private int cellAt(float x, float y) {
+		if (mColumns == 0) {
+			return -1;
+		}
+		float dx = x - mGridMinX;
+		float dy = y - mGridMinY;
+		if (dx < 0 || dy < 0 || dx > mCellWidth * mColumns
+				|| dy > mCellHeight * mRows) {
+			return -1;
+		}
+		return row(y) * mColumns + column(x);
+	}
+
+	private int column(float x) {
+		int column = (int) ((x - mGridMinX) / mCellWidth);
+		return Math.max(0, Math.min(column, mColumns - 1));
+	}
+
+	private int row(float y) {
+		int row = (int) ((y - mGridMinY) / mCellHeight);
+		return Math.max(0, Math.min(row, mRows - 1));
+	}
+}
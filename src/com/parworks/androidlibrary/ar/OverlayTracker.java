@@ -0,0 +1,571 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.util.Random;
+
+/**
+ * Keeps the overlays of an augment result on the right spot between server
+ * augments by following the camera's motion on the device.
+ *
+ * Corners are found in the frame that was augmented, the reference frame,
+ * and found again in each new frame by matching the patch around each one,
+ * searching near where it was in the frame before.
+ * An affine transform from the reference frame to the current frame is fit to
+ * the matched corners, ignoring those that moved inconsistently, and the
+ * overlays are mapped through it. The fraction of the reference corners still
+ * followed is the tracker's confidence; when it drops below the minimum a new
+ * augment should be requested.
+ *
+ * Frames are grayscale, one byte per pixel, such as the Y plane at the start
+ * of an NV21 camera preview buffer. They are shrunk to about 160 pixels wide
+ * before tracking, so tracking costs little per frame. The tracker uses no
+ * platform classes, so recorded frame sequences can be replayed on the JVM.
+ *
+ * Example:
+ *
+ *     // when an augment result arrives for a frame
+ *     tracker.setReference(frameY, width, height, augmentedData);
+ *     // for each camera frame
+ *     GeometryTransform motion = tracker.track(frameY, width, height);
+ *     if (motion != null) {
+ *         viewCoordinates = motion.then(toView).apply(geometry, viewCoordinates);
+ *     }
+ *     if (tracker.needsAugment()) {
+ *         // send this frame to the server
+ *     }
+ */
+public class OverlayTracker {
+
+	public static final int DEFAULT_MAX_FEATURES = 80;
+	public static final float DEFAULT_MIN_CONFIDENCE = 0.4f;
+
+	// frames are shrunk by a whole factor to about this width
+	private static final int TRACKING_WIDTH = 160;
+	// half the size of the patch matched around each corner
+	private static final int PATCH_RADIUS = 3;
+	// how far a corner may move between frames, in shrunk pixels
+	private static final int SEARCH_RADIUS = 8;
+	// half the size of the window the corner score is summed over
+	private static final int SCORE_RADIUS = 2;
+	// the largest mean absolute difference of a matched patch
+	private static final int MAX_MEAN_DIFFERENCE = 24;
+	// corners scoring below this fraction of the best are not used
+	private static final float MIN_SCORE_FRACTION = 0.01f;
+	// the fewest corners a transform is fit to
+	private static final int MIN_FEATURES = 8;
+	// how far a corner may be from where the transform puts it, in shrunk
+	// pixels
+	private static final float INLIER_DISTANCE = 1.5f;
+	private static final int RANSAC_ITERATIONS = 64;
+
+	private final int mMaxFeatures;
+	private float mMinConfidence = DEFAULT_MIN_CONFIDENCE;
+	// seeded so replayed sequences track the same way every time
+	private final Random mRandom = new Random(1);
+
+	private AugmentedData mResult;
+	private int mWidth;
+	private int mHeight;
+	private int mFactor;
+	private int mLevelWidth;
+	private int mLevelHeight;
+	private int[] mReference;
+
+	// corners in the reference frame and where they are now, in shrunk
+	// pixels
+	private float[] mReferenceX;
+	private float[] mReferenceY;
+	private float[] mCurrentX;
+	private float[] mCurrentY;
+	private int mCount;
+	private int mInitialCount;
+
+	private GeometryTransform mTransform;
+	private float mConfidence;
+
+	public OverlayTracker() {
+		this(DEFAULT_MAX_FEATURES);
+	}
+
+	/**
+	 * @param maxFeatures
+	 *            the most corners followed. More corners track more robustly
+	 *            at a higher cost per frame.
+	 */
+	public OverlayTracker(int maxFeatures) {
+		mMaxFeatures = maxFeatures;
+	}
+
+	/**
+	 * @param minConfidence
+	 *            the confidence below which needsAugment() returns true
+	 */
+	public void setMinConfidence(float minConfidence) {
+		mMinConfidence = minConfidence;
+	}
+
+	/**
+	 * Starts tracking from the frame an augment result belongs to.
+	 *
+	 * @param frame
+	 *            the grayscale frame that was augmented
+	 * @param width
+	 *            the width of the frame
+	 * @param height
+	 *            the height of the frame
+	 * @param result
+	 *            the result of augmenting the frame. Its overlay vertices are
+	 *            in the frame's pixel coordinates.
+	 */
+	public void setReference(byte[] frame, int width, int height,
+			AugmentedData result) {
+		mResult = result;
+		mWidth = width;
+		mHeight = height;
+		mFactor = Math.max(1, width / TRACKING_WIDTH);
+		mLevelWidth = width / mFactor;
+		mLevelHeight = height / mFactor;
+		mReference = shrink(frame, null);
+
+		detectCorners(mReference);
+		mCurrentX = mReferenceX.clone();
+		mCurrentY = mReferenceY.clone();
+		mInitialCount = mCount;
+		if (mCount >= MIN_FEATURES) {
+			mTransform = GeometryTransform.IDENTITY;
+			mConfidence = 1;
+		} else {
+			lose();
+		}
+	}
+
+	/**
+	 * Follows the camera to a new frame.
+	 *
+	 * @param frame
+	 *            the grayscale frame, the same size as the reference frame
+	 * @return the transform from the reference frame's pixel coordinates to
+	 *         this frame's, or null if tracking is lost
+	 */
+	public GeometryTransform track(byte[] frame, int width, int height) {
+		if (mTransform == null) {
+			return null;
+		}
+		if (width != mWidth || height != mHeight) {
+			lose();
+			return null;
+		}
+		int[] current = shrink(frame, null);
+
+		int matched = 0;
+		for (int i = 0; i < mCount; i++) {
+			if (match(current, i)) {
+				mReferenceX[matched] = mReferenceX[i];
+				mReferenceY[matched] = mReferenceY[i];
+				mCurrentX[matched] = mCurrentX[i];
+				mCurrentY[matched] = mCurrentY[i];
+				matched++;
+			}
+		}
+		mCount = matched;
+
+		GeometryTransform levelTransform = mCount >= MIN_FEATURES ? fitAffine()
+				: null;
+		if (levelTransform == null || mCount < MIN_FEATURES) {
+			lose();
+			return null;
+		}
+		// map from full size to shrunk pixels, through the fit, and back
+		mTransform = new GeometryTransform(levelTransform.getA(),
+				levelTransform.getB(), levelTransform.getC(),
+				levelTransform.getD(), levelTransform.getTx() * mFactor,
+				levelTransform.getTy() * mFactor);
+		mConfidence = (float) mCount / mInitialCount;
+		return mTransform;
+	}
+
+	/**
+	 * @return the transform found by the last call to track, or null if
+	 *         tracking is lost
+	 */
+	public GeometryTransform getTransform() {
+		return mTransform;
+	}
+
+	/**
+	 * @return the result passed to setReference
+	 */
+	public AugmentedData getResult() {
+		return mResult;
+	}
+
+	/**
+	 * @return the fraction of the reference frame's corners still followed
+	 *         consistently, 0 when tracking is lost
+	 */
+	public float getConfidence() {
+		return mConfidence;
+	}
+
+	/**
+	 * @return the number of corners being followed
+	 */
+	public int getFeatureCount() {
+		return mTransform == null ? 0 : mCount;
+	}
+
+	/**
+	 * @return true if the overlays can no longer be placed reliably and a new
+	 *         frame should be augmented
+	 */
+	public boolean needsAugment() {
+		return mTransform == null || mConfidence < mMinConfidence;
+	}
+
+	private void lose() {
+		mTransform = null;
+		mConfidence = 0;
+		mCount = 0;
+	}
+
+	/**
+	 * Shrinks a frame by the tracking factor, averaging each block of pixels.
+	 */
+	private int[] shrink(byte[] frame, int[] dst) {
+		int factor = mFactor;
+		if (dst == null) {
+			dst = new int[mLevelWidth * mLevelHeight];
+		}
+		int area = factor * factor;
+		for (int y = 0; y < mLevelHeight; y++) {
+			for (int x = 0; x < mLevelWidth; x++) {
+				int sum = 0;
+				int row = y * factor * mWidth + x * factor;
+				for (int dy = 0; dy < factor; dy++, row += mWidth) {
+					for (int dx = 0; dx < factor; dx++) {
+						sum += frame[row + dx] & 0xff;
+					}
+				}
+				dst[y * mLevelWidth + x] = sum / area;
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * Finds the strongest corners, at most one in each cell of a grid, by the
+	 * smaller eigenvalue of the gradient structure tensor.
+	 */
+	private void detectCorners(int[] image) {
+		int w = mLevelWidth;
+		int h = mLevelHeight;
+		int border = PATCH_RADIUS + 1;
+		float[] scores = new float[w * h];
+		float bestScore = 0;
+		for (int y = border; y < h - border; y++) {
+			for (int x = border; x < w - border; x++) {
+				float sxx = 0, syy = 0, sxy = 0;
+				for (int wy = -SCORE_RADIUS; wy <= SCORE_RADIUS; wy++) {
+					int yy = Math.min(h - 2, Math.max(1, y + wy));
+					for (int wx = -SCORE_RADIUS; wx <= SCORE_RADIUS; wx++) {
+						int xx = Math.min(w - 2, Math.max(1, x + wx));
+						int i = yy * w + xx;
+						float ix = image[i + 1] - image[i - 1];
+						float iy = image[i + w] - image[i - w];
+						sxx += ix * ix;
+						syy += iy * iy;
+						sxy += ix * iy;
+					}
+				}
+				float half = (sxx - syy) / 2;
+				float score = (sxx + syy) / 2
+						- (float) Math.sqrt(half * half + sxy * sxy);
+				scores[y * w + x] = score;
+				bestScore = Math.max(bestScore, score);
+			}
+		}
+
+		int cell = Math.max(PATCH_RADIUS * 2 + 1,
+				(int) Math.sqrt((double) w * h / mMaxFeatures));
+		int maxCorners = ((w + cell - 1) / cell) * ((h + cell - 1) / cell);
+		mReferenceX = new float[maxCorners];
+		mReferenceY = new float[maxCorners];
+		mCount = 0;
+		float minScore = bestScore * MIN_SCORE_FRACTION;
+		for (int cy = 0; cy < h; cy += cell) {
+			for (int cx = 0; cx < w; cx += cell) {
+				int best = -1;
+				float cellBest = minScore;
+				for (int y = Math.max(cy, border); y < Math.min(cy + cell, h - border); y++) {
+					for (int x = Math.max(cx, border); x < Math.min(cx + cell, w - border); x++) {
+						if (scores[y * w + x] > cellBest) {
+							cellBest = scores[y * w + x];
+							best = y * w + x;
+						}
+					}
+				}
+				if (best >= 0 && cellBest > 0) {
+					mReferenceX[mCount] = best % w;
+					mReferenceY[mCount] = best / w;
+					mCount++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds corner i in a frame by matching the patch around it in the
+	 * reference frame, searching around where it was last seen. Matching
+	 * against the reference rather than the previous frame keeps small errors
+	 * from adding up over many frames.
+	 *
+	 * @return false if no patch matches well enough
+	 */
+	private boolean match(int[] current, int i) {
+		int w = mLevelWidth;
+		int h = mLevelHeight;
+		// corners are found on whole pixels
+		int rx0 = (int) mReferenceX[i];
+		int ry0 = (int) mReferenceY[i];
+		int px = Math.round(mCurrentX[i]);
+		int py = Math.round(mCurrentY[i]);
+
+		int size = 2 * SEARCH_RADIUS + 1;
+		int[] costs = new int[size * size];
+		int bestCost = Integer.MAX_VALUE;
+		int bestDx = 0, bestDy = 0;
+		for (int dy = -SEARCH_RADIUS; dy <= SEARCH_RADIUS; dy++) {
+			int cy = py + dy;
+			for (int dx = -SEARCH_RADIUS; dx <= SEARCH_RADIUS; dx++) {
+				int cx = px + dx;
+				int index = (dy + SEARCH_RADIUS) * size + dx + SEARCH_RADIUS;
+				if (cx < PATCH_RADIUS || cy < PATCH_RADIUS
+						|| cx >= w - PATCH_RADIUS || cy >= h - PATCH_RADIUS) {
+					costs[index] = -1;
+					continue;
+				}
+				int cost = 0;
+				for (int ry = -PATCH_RADIUS; ry <= PATCH_RADIUS; ry++) {
+					int r = (ry0 + ry) * w + rx0;
+					int c = (cy + ry) * w + cx;
+					for (int rx = -PATCH_RADIUS; rx <= PATCH_RADIUS; rx++) {
+						cost += Math.abs(mReference[r + rx] - current[c + rx]);
+					}
+				}
+				costs[index] = cost;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestDx = dx;
+					bestDy = dy;
+				}
+			}
+		}
+		int patchArea = (2 * PATCH_RADIUS + 1) * (2 * PATCH_RADIUS + 1);
+		if (bestCost > MAX_MEAN_DIFFERENCE * patchArea) {
+			return false;
+		}
+
+		// refine to a fraction of a pixel from the neighbouring costs
+		float subX = 0, subY = 0;
+		int centre = (bestDy + SEARCH_RADIUS) * size + bestDx + SEARCH_RADIUS;
+		if (Math.abs(bestDx) < SEARCH_RADIUS) {
+			subX = peakOffset(costs[centre - 1], bestCost, costs[centre + 1]);
+		}
+		if (Math.abs(bestDy) < SEARCH_RADIUS) {
+			subY = peakOffset(costs[centre - size], bestCost, costs[centre
+					+ size]);
+		}
+		mCurrentX[i] = px + bestDx + subX;
+		mCurrentY[i] = py + bestDy + subY;
+		return true;
+	}
+
+	/**
+	 * Fits a symmetric V through a minimum cost and its neighbours, which
+	 * suits sums of absolute differences better than a parabola.
+	 *
+	 * @return the offset of the V's tip from the centre, or 0 if a neighbour
+	 *         is missing
+	 */
+	private static float peakOffset(int left, int centre, int right) {
+		if (left < 0 || right < 0) {
+			return 0;
+		}
+		int rise = Math.max(left, right) - centre;
+		if (rise <= 0) {
+			return 0;
+		}
+		return (left - right) / (2f * rise);
+	}
+
+	/**
+	 * Fits an affine transform from the reference corners to the current
+	 * ones with RANSAC, keeps only the corners that agree with it, and refits
+	 * it to them by least squares.
+	 *
+	 * @return the transform in shrunk pixels, or null if none fits
+	 */
+	private GeometryTransform fitAffine() {
+		float[] model = new float[6];
+		float[] bestModel = null;
+		int bestInliers = 0;
+		for (int iteration = 0; iteration < RANSAC_ITERATIONS; iteration++) {
+			int i = mRandom.nextInt(mCount);
+			int j = mRandom.nextInt(mCount);
+			int k = mRandom.nextInt(mCount);
+			if (i == j || j == k || i == k || !solveExact(i, j, k, model)) {
+				continue;
+			}
+			int inliers = countInliers(model, false);
+			if (inliers > bestInliers) {
+				bestInliers = inliers;
+				bestModel = model.clone();
+			}
+		}
+		if (bestModel == null || bestInliers < MIN_FEATURES) {
+			return null;
+		}
+		mCount = countInliers(bestModel, true);
+		if (!solveLeastSquares(bestModel)) {
+			return null;
+		}
+		return new GeometryTransform(bestModel[0], bestModel[1], bestModel[2],
+				bestModel[3], bestModel[4], bestModel[5]);
+	}
+
+	/**
+	 * Counts the corners within INLIER_DISTANCE of where the model maps them,
+	 * optionally removing the others.
+	 */
+	private int countInliers(float[] model, boolean removeOutliers) {
+		float limit = INLIER_DISTANCE * INLIER_DISTANCE;
+		int inliers = 0;
+		for (int i = 0; i < mCount; i++) {
+			float x = mReferenceX[i];
+			float y = mReferenceY[i];
+			float ex = model[0] * x + model[2] * y + model[4] - mCurrentX[i];
+			float ey = model[1] * x + model[3] * y + model[5] - mCurrentY[i];
+			if (ex * ex + ey * ey <= limit) {
+				if (removeOutliers) {
+					mReferenceX[inliers] = x;
+					mReferenceY[inliers] = y;
+					mCurrentX[inliers] = mCurrentX[i];
+					mCurrentY[inliers] = mCurrentY[i];
+				}
+				inliers++;
+			}
+		}
+		return inliers;
+	}
+
+	/**
+	 * Solves for the transform mapping three reference corners exactly onto
+	 * their current positions.
+	 *
+	 * @param model
+	 *            receives { a, b, c, d, tx, ty }
+	 * @return false if the corners are collinear
+	 */
+	private boolean solveExact(int i, int j, int k, float[] model) {
+		double x1 = mReferenceX[i], y1 = mReferenceY[i];
+		double x2 = mReferenceX[j], y2 = mReferenceY[j];
+		double x3 = mReferenceX[k], y3 = mReferenceY[k];
+		double[][] m = { { x1, y1, 1 }, { x2, y2, 1 }, { x3, y3, 1 } };
+		double[] u = new double[3];
+		double[] v = new double[3];
+		if (!solve3(m, new double[] { mCurrentX[i], mCurrentX[j], mCurrentX[k] }, u)
+				|| !solve3(m, new double[] { mCurrentY[i], mCurrentY[j],
+						mCurrentY[k] }, v)) {
+			return false;
+		}
+		setModel(model, u, v);
+		return true;
+	}
+
+	/**
+	 * Refits the transform to all the remaining corners by least squares.
+	 */
+	private boolean solveLeastSquares(float[] model) {
+		double sxx = 0, sxy = 0, sx = 0, syy = 0, sy = 0;
+		double sxu = 0, syu = 0, su = 0, sxv = 0, syv = 0, sv = 0;
+		for (int i = 0; i < mCount; i++) {
+			double x = mReferenceX[i];
+			double y = mReferenceY[i];
+			double u = mCurrentX[i];
+			double v = mCurrentY[i];
+			sxx += x * x;
+			sxy += x * y;
+			sx += x;
+			syy += y * y;
+			sy += y;
+			sxu += x * u;
+			syu += y * u;
+			su += u;
+			sxv += x * v;
+			syv += y * v;
+			sv += v;
+		}
+		double[][] normal = { { sxx, sxy, sx }, { sxy, syy, sy },
+				{ sx, sy, mCount } };
+		double[] u = new double[3];
+		double[] v = new double[3];
+		if (!solve3(normal, new double[] { sxu, syu, su }, u)
+				|| !solve3(normal, new double[] { sxv, syv, sv }, v)) {
+			return false;
+		}
+		setModel(model, u, v);
+		return true;
+	}
+
+	/**
+	 * @param u
+	 *            the coefficients of x' on x, y and 1
+	 * @param v
+	 *            the coefficients of y' on x, y and 1
+	 */
+	private static void setModel(float[] model, double[] u, double[] v) {
+		model[0] = (float) u[0];
+		model[1] = (float) v[0];
+		model[2] = (float) u[1];
+		model[3] = (float) v[1];
+		model[4] = (float) u[2];
+		model[5] = (float) v[2];
+	}
+
+	/**
+	 * Solves m * result = rhs for a 3x3 m by Cramer's rule.
+	 *
+	 * @return false if m is singular
+	 */
+	private static boolean solve3(double[][] m, double[] rhs, double[] result) {
+		double det = det3(m[0][0], m[0][1], m[0][2], m[1][0], m[1][1],
+				m[1][2], m[2][0], m[2][1], m[2][2]);
+		if (Math.abs(det) < 1e-6) {
+			return false;
+		}
+		result[0] = det3(rhs[0], m[0][1], m[0][2], rhs[1], m[1][1], m[1][2],
+				rhs[2], m[2][1], m[2][2]) / det;
+		result[1] = det3(m[0][0], rhs[0], m[0][2], m[1][0], rhs[1], m[1][2],
+				m[2][0], rhs[2], m[2][2]) / det;
+		result[2] = det3(m[0][0], m[0][1], rhs[0], m[1][0], m[1][1], rhs[1],
+				m[2][0], m[2][1], rhs[2]) / det;
+		return true;
+	}
+
+	private static double det3(double a, double b, double c, double d,
+			double e, double f, double g, double h, double i) {
+		return a * (e * i - f * h) - b * (d * i - f * g) + c * (d * h - e * g);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.io.Serializable;
+import java.nio.FloatBuffer;
+
+/**
+ * Stores the points of any number of polygons in a single float array. Each
+ * point takes getStride() consecutive floats (x, y and, for a stride of 3, z)
+ * and the points of polygon i are points getFirstPoint(i) up to but not
+ * including getFirstPoint(i + 1).
+ *
+ * A PackedGeometry can hold one overlay or every overlay of a site, which
+ * keeps the coordinates contiguous for rendering and avoids an object per
+ * point.
+ */
+@SuppressWarnings("serial")
+public class PackedGeometry implements Serializable {
+
+	private final int mStride;
+	private float[] mCoordinates;
+	private int[] mPolygonStarts;
+	private int mPointCount;
+	private int mPolygonCount;
+	private boolean mPolygonOpen;
+
+	/**
+	 * Creates an empty geometry.
+	 *
+	 * @param stride
+	 *            floats per point, 2 for x,y or 3 for x,y,z
+	 * @param pointCapacity
+	 *            the number of points to allocate room for
+	 * @param polygonCapacity
+	 *            the number of polygons to allocate room for
+	 */
+	public PackedGeometry(int stride, int pointCapacity, int polygonCapacity) {
+		if (stride < 2) {
+			throw new IllegalArgumentException("stride must be at least 2");
+		}
+		mStride = stride;
+		mCoordinates = new float[Math.max(pointCapacity, 1) * stride];
+		mPolygonStarts = new int[Math.max(polygonCapacity, 1) + 1];
+	}
+
+	/**
+	 * Wraps existing packed coordinates without copying them.
+	 *
+	 * @param coordinates
+	 *            the packed points
+	 * @param stride
+	 *            floats per point
+	 * @param polygonStarts
+	 *            the first point of each polygon followed by one past the last
+	 *            point of the last polygon
+	 */
+	public static PackedGeometry wrap(float[] coordinates, int stride,
+			int[] polygonStarts) {
+		PackedGeometry geometry = new PackedGeometry(stride, 0, 0);
+		geometry.mCoordinates = coordinates;
+		geometry.mPolygonStarts = polygonStarts;
+		geometry.mPolygonCount = polygonStarts.length - 1;
+		geometry.mPointCount = polygonStarts[polygonStarts.length - 1];
+		return geometry;
+	}
+
+	/**
+	 * Starts a new polygon. Points added with addPoint belong to it until
+	 * endPolygon is called.
+	 *
+	 * @return the index of the new polygon
+	 */
+	public int beginPolygon() {
+		if (mPolygonOpen) {
+			throw new IllegalStateException("The previous polygon was not ended");
+		}
+		mPolygonOpen = true;
+		if (mPolygonCount + 2 > mPolygonStarts.length) {
+			int[] grown = new int[mPolygonStarts.length * 2];
+			System.arraycopy(mPolygonStarts, 0, grown, 0, mPolygonCount + 1);
+			mPolygonStarts = grown;
+		}
+		mPolygonStarts[mPolygonCount] = mPointCount;
+		return mPolygonCount;
+	}
+
+	public void addPoint(float x, float y) {
+		addPoint(x, y, 0);
+	}
+
+	public void addPoint(float x, float y, float z) {
+		if (!mPolygonOpen) {
+			throw new IllegalStateException("beginPolygon must be called first");
+		}
+		ensurePointCapacity(mPointCount + 1);
+		int i = mPointCount * mStride;
+		mCoordinates[i] = x;
+		mCoordinates[i + 1] = y;
+		if (mStride > 2) {
+			mCoordinates[i + 2] = z;
+		}
+		mPointCount++;
+	}
+
+	/**
+	 * Finishes the polygon started by beginPolygon.
+	 */
+	public void endPolygon() {
+		if (!mPolygonOpen) {
+			throw new IllegalStateException("No polygon was begun");
+		}
+		mPolygonOpen = false;
+		mPolygonCount++;
+		mPolygonStarts[mPolygonCount] = mPointCount;
+	}
+
+	/**
+	 * Appends a polygon whose points are already packed with this geometry's
+	 * stride.
+	 *
+	 * @return the index of the new polygon
+	 */
+	public int addPolygon(float[] coordinates, int offset, int pointCount) {
+		int polygon = beginPolygon();
+		ensurePointCapacity(mPointCount + pointCount);
+		System.arraycopy(coordinates, offset, mCoordinates, mPointCount * mStride,
+				pointCount * mStride);
+		mPointCount += pointCount;
+		endPolygon();
+		return polygon;
+	}
+
+	private void ensurePointCapacity(int points) {
+		int required = points * mStride;
+		if (required > mCoordinates.length) {
+			float[] grown = new float[Math.max(required, mCoordinates.length * 2)];
+			System.arraycopy(mCoordinates, 0, grown, 0, mPointCount * mStride);
+			mCoordinates = grown;
+		}
+	}
+
+	public int getStride() {
+		return mStride;
+	}
+
+	public int getPolygonCount() {
+		return mPolygonCount;
+	}
+
+	/**
+	 * @return the number of points in all polygons
+	 */
+	public int getPointCount() {
+		return mPointCount;
+	}
+
+	/**
+	 * @return the index of the first point of the polygon
+	 */
+	public int getFirstPoint(int polygon) {
+		return mPolygonStarts[polygon];
+	}
+
+	public int getPointCount(int polygon) {
+		return mPolygonStarts[polygon + 1] - mPolygonStarts[polygon];
+	}
+
+	/**
+	 * Returns the backing array. Point p starts at index p * getStride(). Only
+	 * the first getPointCount() * getStride() floats are in use.
+	 */
+	public float[] getCoordinates() {
+		return mCoordinates;
+	}
+
+	/**
+	 * Returns a FloatBuffer view of the points in use, sharing the backing
+	 * array.
+	 */
+	public FloatBuffer asFloatBuffer() {
+		return FloatBuffer.wrap(mCoordinates, 0, mPointCount * mStride).slice();
+	}
+
+	public float getX(int point) {
+		return mCoordinates[point * mStride];
+	}
+
+	public float getY(int point) {
+		return mCoordinates[point * mStride + 1];
+	}
+
+	public float getZ(int point) {
+		return mStride > 2 ? mCoordinates[point * mStride + 2] : 0;
+	}
+
+	public void setX(int point, float x) {
+		mCoordinates[point * mStride] = x;
+	}
+
+	public void setY(int point, float y) {
+		mCoordinates[point * mStride + 1] = y;
+	}
+
+	public void setZ(int point, float z) {
+		if (mStride > 2) {
+			mCoordinates[point * mStride + 2] = z;
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.parworks.androidlibrary.response.BaseImageInfo;
+import com.parworks.androidlibrary.utils.HttpUtils;
+import com.parworks.androidlibrary.utils.ImageDescriptor;
+import com.parworks.androidlibrary.utils.ImageResampler;
+import com.parworks.androidlibrary.utils.RequestContext;
+import com.parworks.androidlibrary.utils.RequestScheduler;
+import com.parworks.androidlibrary.utils.SpooledImage;
+
+/**
+ * Guesses on the device which of several candidate sites an image shows, so
+ * that only the likeliest one or two are augmented against on the server.
+ *
+ * Each site is described by ImageDescriptors of the gallery size versions of
+ * its base images, downloaded the first time the site is ranked and kept
+ * afterwards. A site scores the similarity of its base image that looks most
+ * like the image being ranked.
+ *
+ * Ranking is only a guess. Augment against more than the first site, for
+ * example with ARSites.augmentAny.
+ *
+ * Example:
+ *
+ *     SpooledImage image = new SpooledImage(camera);
+ *     List<ARSite> likeliest = ranker.top(arSites.near(lat, lon, 10, 200), image, 2);
+ *     arSites.augmentAny(likeliest, image.newInputStream(), 0.5);
+ */
+public class SiteRanker {
+
+	// images are decoded to about this long edge to be described
+	private static final int DESCRIBE_EDGE = 96;
+
+	// a stalled base image download fails rather than holding up rank
+	private static final int DOWNLOAD_TIMEOUT_MILLIS = 15 * 1000;
+
+	private final Map<String, List<ImageDescriptor>> mDescriptors = new HashMap<String, List<ImageDescriptor>>();
+	private long mLastRankMillis;
+
+	/**
+	 * Orders sites from the likeliest to show the image to the least likely.
+	 * Sites not seen before have their base images downloaded first, so call
+	 * this off the main thread, or call prefetch beforehand. Sites whose base
+	 * images can't be downloaded are put last. The downloads stop if the
+	 * calling thread's RequestContext is cancelled.
+	 *
+	 * @param sites
+	 *            the candidate sites
+	 * @param image
+	 *            the image, such as a camera frame
+	 * @return the sites, in a new list
+	 * @throws ARException
+	 *             if the image can't be decoded, or the calling thread's
+	 *             RequestContext is cancelled
+	 */
+	public List<ARSite> rank(List<ARSite> sites, SpooledImage image) {
+		CancellationToken token = RequestContext.currentCancellationToken();
+		for (ARSite site : sites) {
+			try {
+				prefetch(site);
+			} catch (ARException e) {
+				if (token != null) {
+					token.throwIfCancelled();
+				}
+				// ranked last, and tried again next time
+			}
+		}
+
+		long start = System.nanoTime();
+		ImageDescriptor query = describe(image.getBuffer(), 0, image.getLength());
+		if (query == null) {
+			throw new ARException("The image could not be decoded.");
+		}
+		final Map<ARSite, Float> scores = new HashMap<ARSite, Float>();
+		for (ARSite site : sites) {
+			scores.put(site, score(site.getSiteId(), query));
+		}
+		List<ARSite> ranked = new ArrayList<ARSite>(sites);
+		// the sort is stable, so equally scored sites keep their order
+		Collections.sort(ranked, new Comparator<ARSite>() {
+			@Override
+			public int compare(ARSite site1, ARSite site2) {
+				return Float.compare(scores.get(site2), scores.get(site1));
+			}
+		});
+		synchronized (this) {
+			mLastRankMillis = (System.nanoTime() - start) / 1000000;
+		}
+		return ranked;
+	}
+
+	/**
+	 * @return the count likeliest sites to show the image, or all the sites
+	 *         if there are fewer
+	 * @see #rank(List, SpooledImage)
+	 */
+	public List<ARSite> top(List<ARSite> sites, SpooledImage image, int count) {
+		List<ARSite> ranked = rank(sites, image);
+		return new ArrayList<ARSite>(ranked.subList(0,
+				Math.min(count, ranked.size())));
+	}
+
+	/**
+	 * Downloads and describes the base images of a site, unless that has
+	 * already been done. The listing yields to augments. If none of the base
+	 * images can be downloaded, nothing is kept and the next call tries again.
+	 *
+	 * @throws ARException
+	 *             if the base images can't be listed, or the calling thread's
+	 *             RequestContext is cancelled
+	 */
+	public void prefetch(ARSite site) {
+		String siteId = site.getSiteId();
+		synchronized (this) {
+			if (mDescriptors.containsKey(siteId)) {
+				return;
+			}
+		}
+		// nobody is waiting on the listing, so it yields to augments; the
+		// images are on another server, outside the api's scheduler
+		CancellationToken token = RequestContext.currentCancellationToken();
+		RequestContext previous = RequestContext.attach(new RequestContext(
+				token, RequestScheduler.Priority.PREFETCH, null));
+		List<ImageDescriptor> descriptors = new ArrayList<ImageDescriptor>();
+		int failed = 0;
+		try {
+			for (BaseImageInfo info : site.getBaseImages()) {
+				if (info.getGallerySize() == null) {
+					continue;
+				}
+				if (token != null) {
+					token.throwIfCancelled();
+				}
+				try {
+					SpooledImage image = download(info.getGallerySize(), token);
+					ImageDescriptor descriptor = describe(image.getBuffer(), 0,
+							image.getLength());
+					if (descriptor != null) {
+						descriptors.add(descriptor);
+					}
+				} catch (ARException e) {
+					// the site is described by its other base images
+					failed++;
+				}
+			}
+			if (token != null) {
+				token.throwIfCancelled();
+			}
+		} finally {
+			RequestContext.restore(previous);
+		}
+		if (failed > 0 && descriptors.isEmpty()) {
+			return;
+		}
+		synchronized (this) {
+			mDescriptors.put(siteId, descriptors);
+		}
+	}
+
+	/**
+	 * Forgets the base images of a site, for example after base images are
+	 * added to it.
+	 */
+	public synchronized void invalidateSite(String siteId) {
+		mDescriptors.remove(siteId);
+	}
+
+	public synchronized void clear() {
+		mDescriptors.clear();
+	}
+
+	/**
+	 * @return the time the last rank took to describe the image and score the
+	 *         sites, not counting downloads
+	 */
+	public synchronized long getLastRankMillis() {
+		return mLastRankMillis;
+	}
+
+	/**
+	 * Downloads an image from its url as is, without the api headers, which
+	 * are only for the api server. The connection is aborted if the token is
+	 * cancelled while the image is read.
+	 *
+	 * @throws ARException
+	 *             if the image can't be downloaded
+	 */
+	private static SpooledImage download(String url, CancellationToken token) {
+		HttpUtils httpUtils = new HttpUtils();
+		httpUtils.setTimeout(DOWNLOAD_TIMEOUT_MILLIS);
+		HttpResponse response = httpUtils.doGetExternal(url);
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			throw new ARException("The base image " + url + " was empty.");
+		}
+		final InputStream content;
+		try {
+			content = entity.getContent();
+		} catch (IOException e) {
+			throw new ARException("Couldn't download the base image " + url, e);
+		}
+		Runnable abort = null;
+		try {
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+				throw new ARException("Couldn't download the base image " + url
+						+ ": " + response.getStatusLine());
+			}
+			if (token != null && content instanceof ConnectionReleaseTrigger) {
+				abort = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							((ConnectionReleaseTrigger) content).abortConnection();
+						} catch (IOException e) {
+							// the read fails either way
+						}
+					}
+				};
+				token.addCancelListener(abort);
+			}
+			// closes the content, which returns the connection to the pool
+			return new SpooledImage(content);
+		} finally {
+			if (abort != null) {
+				token.removeCancelListener(abort);
+			}
+			try {
+				content.close();
+			} catch (IOException e) {
+				// the connection is closed rather than reused
+			}
+		}
+	}
+
+	/**
+	 * @return the similarity of the site's base image most like the query, or
+	 *         -1 if the site has no described base images
+	 */
+	private synchronized float score(String siteId, ImageDescriptor query) {
+		List<ImageDescriptor> descriptors = mDescriptors.get(siteId);
+		float best = -1;
+		if (descriptors != null) {
+			for (ImageDescriptor descriptor : descriptors) {
+				best = Math.max(best, query.similarity(descriptor));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the descriptor of an encoded image, decoded only as far as
+	 *         needed, or null if it can't be decoded or is too small
+	 */
+	private static ImageDescriptor describe(byte[] encoded, int offset,
+			int length) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(encoded, offset, length, options);
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = ImageResampler.sampleSize(options.outWidth,
+				options.outHeight, DESCRIBE_EDGE);
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		Bitmap bitmap = BitmapFactory.decodeByteArray(encoded, offset, length,
+				options);
+		if (bitmap == null) {
+			return null;
+		}
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		if (Math.min(width, height) < ImageDescriptor.getMinimumSize()) {
+			bitmap.recycle();
+			return null;
+		}
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		bitmap.recycle();
+		return ImageDescriptor.compute(pixels, width, height);
+	}
+}
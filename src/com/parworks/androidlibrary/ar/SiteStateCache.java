@@ -0,0 +1,107 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.parworks.androidlibrary.ar.ARSite.State;
+
+/**
+ * Remembers the last known state of each site for a limited time, so that the
+ * RequiredState checks made before mutations and augments do not need a
+ * server round trip each time. ARSites shares one cache between all the sites
+ * it creates.
+ */
+public class SiteStateCache {
+
+	/** How long a state is trusted by default, in milliseconds */
+	public static final long DEFAULT_TTL_MILLIS = 30 * 1000;
+
+	private static class Entry {
+		final State state;
+		final long time;
+
+		Entry(State state, long time) {
+			this.state = state;
+			this.time = time;
+		}
+	}
+
+	private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+	private long mTtlMillis;
+
+	public SiteStateCache() {
+		this(DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * @param ttlMillis
+	 *            how long a state is trusted after it was observed. 0
+	 *            disables caching.
+	 */
+	public SiteStateCache(long ttlMillis) {
+		mTtlMillis = ttlMillis;
+	}
+
+	public synchronized long getTtlMillis() {
+		return mTtlMillis;
+	}
+
+	public synchronized void setTtlMillis(long ttlMillis) {
+		mTtlMillis = ttlMillis;
+	}
+
+	/**
+	 * @return the state of the site if it was observed within the freshness
+	 *         window, otherwise null
+	 */
+	public synchronized State get(String siteId) {
+		Entry entry = mEntries.get(siteId);
+		if (entry == null) {
+			return null;
+		}
+		if (now() - entry.time >= mTtlMillis) {
+			mEntries.remove(siteId);
+			return null;
+		}
+		return entry.state;
+	}
+
+	/**
+	 * Records the state of a site as of now.
+	 */
+	public synchronized void put(String siteId, State state) {
+		if (state == null) {
+			mEntries.remove(siteId);
+		} else {
+			mEntries.put(siteId, new Entry(state, now()));
+		}
+	}
+
+	/**
+	 * Forgets the state of a site, so the next check goes to the server.
+	 */
+	public synchronized void invalidate(String siteId) {
+		mEntries.remove(siteId);
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
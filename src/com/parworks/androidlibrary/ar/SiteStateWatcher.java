@@ -0,0 +1,294 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.ar;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.parworks.androidlibrary.ar.ARSite.State;
+import com.parworks.androidlibrary.utils.PollScheduler;
+
+/**
+ * Watches the state of sites, for example while their base images are
+ * processing, and tells every interested listener when the state changes.
+ * However many listeners watch a site, only one poller runs for it, and it
+ * stops as soon as the last listener is removed.
+ *
+ * While a site is PROCESSING it is polled more often as the end of processing
+ * approaches, based on how long processing has taken for previously watched
+ * sites. Only sites seen going from NEEDS_BASE_IMAGE_PROCESSING to PROCESSING
+ * are timed, since for a site already processing when watching began the
+ * start is unknown. Otherwise a site is polled at the maximum interval.
+ *
+ * The polls of all watched sites are multiplexed on one PollScheduler, so
+ * watching hundreds of sites needs only its small, fixed pool of threads and
+ * a bounded number of requests in flight. Its lag metrics show whether the
+ * schedule is falling behind.
+ *
+ * Listeners are called on a polling thread, first with the state found by the
+ * first poll and then with every change. An exception thrown by a listener is
+ * logged and does not affect other listeners or the polling.
+ *
+ * Example:
+ *
+ *     arSites.getStateWatcher().watch(site, new ARListener<State>() {
+ *         public void handleResponse(State state) {
+ *             if (state != State.PROCESSING) {
+ *                 arSites.getStateWatcher().unwatch(site, this);
+ *             }
+ *         }
+ *     }, null);
+ */
+public class SiteStateWatcher {
+
+	public static final long DEFAULT_MIN_INTERVAL_MILLIS = 2 * 1000;
+	public static final long DEFAULT_MAX_INTERVAL_MILLIS = 60 * 1000;
+
+	// weight of the newest observation in the processing time average
+	private static final double PROCESSING_TIME_WEIGHT = 0.3;
+
+	private static final Logger LOG = Logger.getLogger(SiteStateWatcher.class
+			.getName());
+
+	private final PollScheduler mScheduler;
+	private final boolean mOwnsScheduler;
+	private final Map<String, SitePoller> mPollers = new HashMap<String, SitePoller>();
+	private long mMinIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+	private long mMaxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+	private double mAverageProcessingMillis;
+
+	public SiteStateWatcher() {
+		mScheduler = new PollScheduler();
+		mOwnsScheduler = true;
+	}
+
+	/**
+	 * @param scheduler
+	 *            the scheduler to run the polls on. It may be shared with
+	 *            other watchers.
+	 */
+	public SiteStateWatcher(PollScheduler scheduler) {
+		mScheduler = scheduler;
+		mOwnsScheduler = false;
+	}
+
+	/**
+	 * @return the scheduler running the polls, which reports the polling lag
+	 */
+	public PollScheduler getPollScheduler() {
+		return mScheduler;
+	}
+
+	/**
+	 * Sets the bounds of the polling interval.
+	 */
+	public synchronized void setIntervals(long minIntervalMillis,
+			long maxIntervalMillis) {
+		mMinIntervalMillis = minIntervalMillis;
+		mMaxIntervalMillis = maxIntervalMillis;
+	}
+
+	/**
+	 * Starts telling listener about the state of site.
+	 *
+	 * @param site
+	 *            the site to watch
+	 * @param listener
+	 *            called with the site's state and every change to it
+	 * @param onErrorListener
+	 *            called when a poll fails. May be null. Polling continues.
+	 */
+	public void watch(ARSite site, ARListener<State> listener,
+			ARErrorListener onErrorListener) {
+		Subscriber subscriber = new Subscriber(listener, onErrorListener);
+		SitePoller poller;
+		synchronized (this) {
+			poller = mPollers.get(site.getSiteId());
+			if (poller == null) {
+				poller = new SitePoller(site);
+				mPollers.put(site.getSiteId(), poller);
+				poller.mHandle = mScheduler.schedule(poller, 0);
+			}
+			poller.mSubscribers.add(subscriber);
+		}
+		// outside the lock, as the listener may call unwatch. A poll running
+		// now may deliver the same state, which the subscriber only passes on
+		// once.
+		subscriber.deliver(poller);
+	}
+
+	/**
+	 * Stops telling listener about the state of site. When no listeners
+	 * remain for the site it is no longer polled.
+	 */
+	public synchronized void unwatch(ARSite site, ARListener<State> listener) {
+		SitePoller poller = mPollers.get(site.getSiteId());
+		if (poller == null) {
+			return;
+		}
+		for (Subscriber subscriber : poller.mSubscribers) {
+			if (subscriber.mListener == listener) {
+				poller.mSubscribers.remove(subscriber);
+			}
+		}
+		if (poller.mSubscribers.isEmpty()) {
+			poller.stop();
+			mPollers.remove(site.getSiteId());
+		}
+	}
+
+	/**
+	 * @return the number of sites being polled
+	 */
+	public synchronized int getWatchedSiteCount() {
+		return mPollers.size();
+	}
+
+	/**
+	 * Stops polling every site. The scheduler is shut down too unless it was
+	 * passed to the constructor.
+	 */
+	public synchronized void shutdown() {
+		for (SitePoller poller : mPollers.values()) {
+			poller.stop();
+		}
+		mPollers.clear();
+		if (mOwnsScheduler) {
+			mScheduler.shutdown();
+		}
+	}
+
+	private synchronized void recordProcessingTime(long millis) {
+		if (mAverageProcessingMillis == 0) {
+			mAverageProcessingMillis = millis;
+		} else {
+			mAverageProcessingMillis = PROCESSING_TIME_WEIGHT * millis
+					+ (1 - PROCESSING_TIME_WEIGHT) * mAverageProcessingMillis;
+		}
+	}
+
+	/**
+	 * Chooses the delay before the next poll of a site that has been
+	 * processing for the given time.
+	 */
+	private synchronized long nextInterval(State state, long processingMillis) {
+		if (state != State.PROCESSING) {
+			return mMaxIntervalMillis;
+		}
+		if (mAverageProcessingMillis == 0) {
+			return mMinIntervalMillis;
+		}
+		// poll at half the expected remaining time, so a site is polled
+		// sparsely at first and closely around when it should finish
+		long remaining = (long) mAverageProcessingMillis - processingMillis;
+		return Math.max(mMinIntervalMillis, Math.min(mMaxIntervalMillis,
+				remaining / 2));
+	}
+
+	private static class Subscriber {
+		final ARListener<State> mListener;
+		final ARErrorListener mErrorListener;
+		private State mDeliveredState;
+
+		Subscriber(ARListener<State> listener, ARErrorListener errorListener) {
+			mListener = listener;
+			mErrorListener = errorListener;
+		}
+
+		/**
+		 * Tells the listener the poller's latest state unless it was the last
+		 * state it was told. The state is read under the subscriber's lock so
+		 * that deliveries from watch and a concurrent poll are neither
+		 * repeated nor reordered.
+		 */
+		synchronized void deliver(SitePoller poller) {
+			State state = poller.mLastState;
+			if (state == null || state == mDeliveredState) {
+				return;
+			}
+			mDeliveredState = state;
+			try {
+				mListener.handleResponse(state);
+			} catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "A site state listener threw", e);
+			}
+		}
+
+		void deliverError(Exception error) {
+			if (mErrorListener == null) {
+				return;
+			}
+			try {
+				mErrorListener.handleError(error);
+			} catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "A site state error listener threw", e);
+			}
+		}
+	}
+
+	private class SitePoller implements PollScheduler.PollTask {
+
+		final ARSite mSite;
+		final List<Subscriber> mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+		volatile State mLastState;
+		PollScheduler.Handle mHandle;
+		long mProcessingSince;
+		// whether this poller saw processing start, so mProcessingSince is
+		// when it started rather than when watching began
+		boolean mSawProcessingStart;
+
+		SitePoller(ARSite site) {
+			mSite = site;
+		}
+
+		void stop() {
+			mHandle.cancel();
+		}
+
+		@Override
+		public long poll() {
+			long now = System.nanoTime() / 1000000;
+			State state;
+			try {
+				state = mSite.getState();
+			} catch (Exception e) {
+				for (Subscriber subscriber : mSubscribers) {
+					subscriber.deliverError(e);
+				}
+				return nextInterval(mLastState, 0);
+			}
+
+			if (state == State.PROCESSING && mLastState != State.PROCESSING) {
+				mProcessingSince = now;
+				mSawProcessingStart = mLastState == State.NEEDS_BASE_IMAGE_PROCESSING;
+			} else if (state != State.PROCESSING
+					&& mLastState == State.PROCESSING) {
+				if (mSawProcessingStart) {
+					recordProcessingTime(now - mProcessingSince);
+				}
+				mSawProcessingStart = false;
+			}
+
+			mLastState = state;
+			for (Subscriber subscriber : mSubscribers) {
+				subscriber.deliver(this);
+			}
+			return nextInterval(state, now - mProcessingSince);
+		}
+	}
+}
@@ -15,15 +15,18 @@ package com.parworks.androidlibrary.response;
 
 import java.io.IOException;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.parworks.androidlibrary.ar.ARException;
+import com.parworks.androidlibrary.utils.RequestContext;
 
 /**
+ * Decodes responses in whichever encoding the server chose from the Accept
+ * header sent by HttpUtils. Responses without a recognized binary Content-Type
+ * are decoded as JSON.
  * 
  * @author Adam Hickey
  *
@@ -32,15 +35,17 @@ public class ARResponseHandlerImpl implements ARResponseHandler {
 
 	@Override
 	public <T> T handleResponse(HttpResponse serverResponse, Class<T> typeOfResponse) {
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		// the body has been read already, but a cancelled call should not
+		// go on to act on it
+		RequestContext.throwIfCancelled();
+		ResponseEncoding encoding = getEncoding(serverResponse);
 		T responseObject = null;
 		try {
-			responseObject = mapper.readValue(serverResponse.getEntity().getContent(),typeOfResponse);
+			responseObject = encoding.getMapper().readValue(serverResponse.getEntity().getContent(),typeOfResponse);
 		} catch (JsonParseException e) {
-			throw new ARException("Couldn't handle the response because the http response contained malformed json.",e);
+			throw new ARException("Couldn't handle the response because the http response contained malformed " + encoding + ".",e);
 		} catch (JsonMappingException e) {
-			throw new ARException("Mapping the json response to the response object " + typeOfResponse + " failed.",e);
+			throw new ARException("Mapping the " + encoding + " response to the response object " + typeOfResponse + " failed.",e);
 		} catch (IllegalStateException e) {
 			throw new ARException("Couldn't convert the http response to an inputstream because of illegal state.",e);
 		} catch (IOException e) {
@@ -48,4 +53,13 @@ public class ARResponseHandlerImpl implements ARResponseHandler {
 		}
 		return responseObject;
 	}
+
+	private static ResponseEncoding getEncoding(HttpResponse serverResponse) {
+		Header contentType = serverResponse.getEntity().getContentType();
+		if (contentType == null) {
+			contentType = serverResponse.getFirstHeader("Content-Type");
+		}
+		return ResponseEncoding.forContentType(contentType == null ? null
+				: contentType.getValue());
+	}
 }
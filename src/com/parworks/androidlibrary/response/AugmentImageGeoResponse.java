@@ -0,0 +1,44 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.response;
+/**
+ * Used to deserialize the response from the Augment Image With Proximity
+ * Search endpoint
+ *
+ */
+public class AugmentImageGeoResponse {
+	private boolean mSuccess;
+	private String mImgId;
+	private String mSite;
+	
+	public void setImgId(String imgId) {
+		mImgId = imgId;
+	}
+	public String getImgId() {
+		return mImgId;
+	}
+	public void setSite(String site) {
+		mSite = site;
+	}
+	public String getSite() {
+		return mSite;
+	}
+	public void setSuccess(boolean success) {
+		mSuccess = success;
+	}
+	public boolean getSuccess() {
+		return mSuccess;
+	}
+	
+}
@@ -2,6 +2,8 @@ package com.parworks.androidlibrary.response;
 
 import java.util.List;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
 public class GetSiteOverlaysResponse {
 	
 	private List<ImageOverlayInfo> overlays;
@@ -11,6 +13,7 @@ public class GetSiteOverlaysResponse {
 		return overlays;
 	}
 
+	@JsonDeserialize(using = OverlayListDeserializer.class)
 	public void setOverlays(List<ImageOverlayInfo> overlays) {
 		this.overlays = overlays;
 	}
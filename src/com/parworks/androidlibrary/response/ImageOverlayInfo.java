@@ -1,17 +1,30 @@
 package com.parworks.androidlibrary.response;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 
+import com.parworks.androidlibrary.ar.PackedGeometry;
+
 
 @SuppressWarnings("serial")
 public class ImageOverlayInfo implements Serializable {
+	
+	/** Number of floats per point in the packed geometry: x and y */
+	public static final int FLOATS_PER_POINT = 2;
+	
 	private String site;
 	private String content;
 	private String id;
 	private String imageId;
 	private String accuracy;
 	private String name;
-	private List<OverlayPoint> points;
+	// serialized as this overlay's own points only, see writeObject
+	private transient PackedGeometry geometry;
+	private transient int polygon;
+	private transient List<OverlayPoint> points;
 
 	public String getSite() {
 		return site;
@@ -61,11 +74,130 @@ public class ImageOverlayInfo implements Serializable {
 		this.name = name;
 	}
 
+	/**
+	 * Returns the overlay's points. The points are views onto getGeometry(),
+	 * so changing them changes the geometry. The list is created the first
+	 * time it is asked for.
+	 */
 	public List<OverlayPoint> getPoints() {
+		if (points == null && geometry != null) {
+			int first = geometry.getFirstPoint(polygon);
+			int end = first + geometry.getPointCount(polygon);
+			List<OverlayPoint> pointViews = new ArrayList<OverlayPoint>(end - first);
+			for (int i = first; i < end; i++) {
+				pointViews.add(new OverlayPoint(geometry, i));
+			}
+			points = pointViews;
+		}
 		return points;
 	}
 
+	/**
+	 * Copies the points into this overlay's own packed geometry.
+	 */
 	public void setPoints(List<OverlayPoint> points) {
-		this.points = points;
+		this.points = null;
+		if (points == null) {
+			geometry = null;
+			return;
+		}
+		geometry = new PackedGeometry(FLOATS_PER_POINT, points.size(), 1);
+		geometry.beginPolygon();
+		for (OverlayPoint point : points) {
+			geometry.addPoint(point.getX(), point.getY());
+		}
+		geometry.endPolygon();
+		polygon = 0;
+	}
+
+	/**
+	 * @return the geometry holding this overlay's points, which may be shared
+	 *         with the site's other overlays; see getPolygon().
+	 */
+	public PackedGeometry getGeometry() {
+		return geometry;
+	}
+
+	/**
+	 * @return the index of this overlay's polygon in getGeometry()
+	 */
+	public int getPolygon() {
+		return polygon;
+	}
+
+	void setPackedGeometry(PackedGeometry geometry, int polygon) {
+		this.geometry = geometry;
+		this.polygon = polygon;
+		this.points = null;
+	}
+
+	/**
+	 * Moves the points of every overlay into one packed geometry shared by
+	 * all of them, so a whole site's overlays sit in a single float array.
+	 * Overlays from ARSite.getSiteOverlays are packed already.
+	 * 
+	 * @param overlays
+	 *            the overlays to pack, or null
+	 * @return the shared geometry, or null if overlays is null
+	 */
+	public static PackedGeometry packAll(List<ImageOverlayInfo> overlays) {
+		if (overlays == null) {
+			return null;
+		}
+		int totalPoints = 0;
+		for (ImageOverlayInfo overlay : overlays) {
+			if (overlay.geometry != null) {
+				totalPoints += overlay.geometry.getPointCount(overlay.polygon);
+			}
+		}
+		PackedGeometry shared = new PackedGeometry(FLOATS_PER_POINT,
+				totalPoints, overlays.size());
+		for (ImageOverlayInfo overlay : overlays) {
+			PackedGeometry own = overlay.geometry;
+			int polygon;
+			if (own == null) {
+				polygon = shared.beginPolygon();
+				shared.endPolygon();
+			} else {
+				polygon = shared.addPolygon(own.getCoordinates(),
+						own.getFirstPoint(overlay.polygon) * FLOATS_PER_POINT,
+						own.getPointCount(overlay.polygon));
+			}
+			overlay.geometry = shared;
+			overlay.polygon = polygon;
+			overlay.points = null;
+		}
+		return shared;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		if (geometry == null) {
+			out.writeInt(-1);
+			return;
+		}
+		int first = geometry.getFirstPoint(polygon);
+		int count = geometry.getPointCount(polygon);
+		out.writeInt(count);
+		for (int i = first; i < first + count; i++) {
+			out.writeFloat(geometry.getX(i));
+			out.writeFloat(geometry.getY(i));
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		int count = in.readInt();
+		if (count < 0) {
+			return;
+		}
+		geometry = new PackedGeometry(FLOATS_PER_POINT, count, 1);
+		geometry.beginPolygon();
+		for (int i = 0; i < count; i++) {
+			geometry.addPoint(in.readFloat(), in.readFloat());
+		}
+		geometry.endPolygon();
+		polygon = 0;
 	}
 }
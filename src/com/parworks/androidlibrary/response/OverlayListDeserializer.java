@@ -0,0 +1,161 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.parworks.androidlibrary.ar.PackedGeometry;
+
+/**
+ * Reads the overlays of a site, streaming every overlay's points straight into
+ * one PackedGeometry shared by all of them, rather than creating an
+ * OverlayPoint per point and a geometry per overlay to be copied afterwards.
+ * Fields other than the points are read as ImageOverlayInfo's bean mapping
+ * would read them, and unknown fields are skipped.
+ */
+public class OverlayListDeserializer extends
+		JsonDeserializer<List<ImageOverlayInfo>> {
+
+	@Override
+	public List<ImageOverlayInfo> deserialize(JsonParser parser,
+			DeserializationContext context) throws IOException,
+			JsonProcessingException {
+		if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+			throw context.mappingException(List.class);
+		}
+		List<ImageOverlayInfo> overlays = new ArrayList<ImageOverlayInfo>();
+		PackedGeometry shared = new PackedGeometry(
+				ImageOverlayInfo.FLOATS_PER_POINT, 64, 8);
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+				overlays.add(null);
+			} else {
+				overlays.add(readOverlay(parser, context, shared));
+			}
+		}
+		return overlays;
+	}
+
+	private static ImageOverlayInfo readOverlay(JsonParser parser,
+			DeserializationContext context, PackedGeometry shared)
+			throws IOException {
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			throw context.mappingException(ImageOverlayInfo.class);
+		}
+		ImageOverlayInfo overlay = new ImageOverlayInfo();
+		int polygon = -1;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if ("points".equals(field)) {
+				polygon = readPoints(parser, context, shared);
+			} else if ("site".equals(field)) {
+				overlay.setSite(readString(parser, context));
+			} else if ("content".equals(field)) {
+				overlay.setContent(readString(parser, context));
+			} else if ("id".equals(field)) {
+				overlay.setId(readString(parser, context));
+			} else if ("imageId".equals(field)) {
+				overlay.setImageId(readString(parser, context));
+			} else if ("accuracy".equals(field)) {
+				overlay.setAccuracy(readString(parser, context));
+			} else if ("name".equals(field)) {
+				overlay.setName(readString(parser, context));
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (polygon < 0) {
+			polygon = shared.beginPolygon();
+			shared.endPolygon();
+		}
+		overlay.setPackedGeometry(shared, polygon);
+		return overlay;
+	}
+
+	/**
+	 * @return the polygon the points were added as, or -1 if they were null
+	 */
+	private static int readPoints(JsonParser parser,
+			DeserializationContext context, PackedGeometry shared)
+			throws IOException {
+		if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+			return -1;
+		}
+		if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+			throw context.mappingException(List.class);
+		}
+		int polygon = shared.beginPolygon();
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+				throw context.mappingException(OverlayPoint.class);
+			}
+			float x = 0;
+			float y = 0;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("x".equals(field)) {
+					x = readFloat(parser, context);
+				} else if ("y".equals(field)) {
+					y = readFloat(parser, context);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			shared.addPoint(x, y);
+		}
+		shared.endPolygon();
+		return polygon;
+	}
+
+	private static String readString(JsonParser parser,
+			DeserializationContext context) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (!token.isScalarValue()) {
+			throw context.mappingException(String.class);
+		}
+		return parser.getText();
+	}
+
+	private static float readFloat(JsonParser parser,
+			DeserializationContext context) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			return parser.getFloatValue();
+		case VALUE_NULL:
+			return 0;
+		case VALUE_STRING:
+			try {
+				return Float.parseFloat(parser.getText().trim());
+			} catch (NumberFormatException e) {
+				throw context.weirdStringException(parser.getText(),
+						Float.TYPE, "not a valid float value");
+			}
+		default:
+			throw context.mappingException(Float.TYPE);
+		}
+	}
+}
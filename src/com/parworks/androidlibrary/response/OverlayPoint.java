@@ -1,32 +1,83 @@
 package com.parworks.androidlibrary.response;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
+import com.parworks.androidlibrary.ar.PackedGeometry;
+
+/**
+ * A point of an overlay. Points returned by ImageOverlayInfo.getPoints() are
+ * views onto the overlay's packed geometry and read and write through to it.
+ */
 @SuppressWarnings("serial")
 public class OverlayPoint implements Serializable {		
 	
 	private float x;
 	private float y;
+	// a point is serialized as its coordinates, without the geometry
+	private transient PackedGeometry geometry;
+	private transient int index;
+	
+	public OverlayPoint() {
+	}
+	
+	/**
+	 * Creates a point backed by a point in a packed geometry.
+	 * 
+	 * @param geometry
+	 *            the geometry holding the point
+	 * @param index
+	 *            the index of the point in the geometry
+	 */
+	public OverlayPoint(PackedGeometry geometry, int index) {
+		this.geometry = geometry;
+		this.index = index;
+	}
 
 	public float getX() {
-		return x;
+		return geometry == null ? x : geometry.getX(index);
 	}
 
 	public void setX(float x) {
-		this.x = x;
+		if (geometry == null) {
+			this.x = x;
+		} else {
+			geometry.setX(index, x);
+		}
 	}
 
 	public float getY() {
-		return y;
+		return geometry == null ? y : geometry.getY(index);
 	}
 
 	public void setY(float y) {
-		this.y = y;
+		if (geometry == null) {
+			this.y = y;
+		} else {
+			geometry.setY(index, y);
+		}
 	}		
 	
+	/**
+	 * Scales the point in place, which also changes the shared geometry of a
+	 * point returned by ImageOverlayInfo.getPoints().
+	 * 
+	 * @deprecated Scaling point by point mutates shared response objects. Map
+	 *             the whole geometry with
+	 *             GeometryTransform.apply(PackedGeometry, float[]) instead.
+	 */
+	@Deprecated
 	public void scale(float scale) {
-		x = x * scale;
-		y = y * scale;
+		setX(getX() * scale);
+		setY(getY() * scale);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("x", getX());
+		fields.put("y", getY());
+		out.writeFields();
 	}
 }
 
@@ -0,0 +1,145 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.response;
+
+import java.lang.reflect.InvocationTargetException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The encodings the library can decode AR endpoint responses from. The binary
+ * encodings are only advertised when the matching Jackson dataformat module
+ * (jackson-dataformat-smile or jackson-dataformat-cbor) is on the classpath,
+ * so JSON is always the fallback.
+ */
+public enum ResponseEncoding {
+
+	SMILE("application/x-jackson-smile",
+			"com.fasterxml.jackson.dataformat.smile.SmileFactory"),
+	CBOR("application/cbor",
+			"com.fasterxml.jackson.dataformat.cbor.CBORFactory"),
+	JSON("application/json", null);
+
+	private static String sAcceptHeader;
+
+	private final String mContentType;
+	private final String mFactoryClassName;
+	private ObjectMapper mMapper;
+	private boolean mResolved;
+
+	private ResponseEncoding(String contentType, String factoryClassName) {
+		mContentType = contentType;
+		mFactoryClassName = factoryClassName;
+	}
+
+	public String getContentType() {
+		return mContentType;
+	}
+
+	/**
+	 * @return true if the decoder for this encoding can be loaded
+	 */
+	public boolean isAvailable() {
+		return getMapper() != null;
+	}
+
+	/**
+	 * Returns the shared mapper for this encoding, or null if the encoding is
+	 * not available. ObjectMappers are thread safe once configured, and
+	 * creating one is far more expensive than the parsing it does, so one is
+	 * kept per encoding.
+	 */
+	public synchronized ObjectMapper getMapper() {
+		if (!mResolved) {
+			mResolved = true;
+			JsonFactory factory = createFactory();
+			if (factory != null) {
+				mMapper = new ObjectMapper(factory);
+				mMapper.configure(
+						DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+			}
+		}
+		return mMapper;
+	}
+
+	private JsonFactory createFactory() {
+		if (mFactoryClassName == null) {
+			return new JsonFactory();
+		}
+		// the encoding is unavailable if its codec is missing or unusable
+		try {
+			return (JsonFactory) Class.forName(mFactoryClassName)
+					.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (InstantiationException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			return null;
+		} catch (ClassCastException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the encoding for the content type of a response. Anything that is
+	 * not a recognized binary encoding is treated as JSON.
+	 *
+	 * @param contentType
+	 *            the Content-Type header value, may be null
+	 * @return the matching encoding, never null
+	 */
+	public static ResponseEncoding forContentType(String contentType) {
+		if (contentType != null) {
+			String mimeType = contentType.trim().toLowerCase();
+			int parameterStart = mimeType.indexOf(';');
+			if (parameterStart >= 0) {
+				mimeType = mimeType.substring(0, parameterStart).trim();
+			}
+			for (ResponseEncoding encoding : values()) {
+				if (encoding.mContentType.equals(mimeType)
+						&& encoding.isAvailable()) {
+					return encoding;
+				}
+			}
+		}
+		return JSON;
+	}
+
+	/**
+	 * The Accept header value sent with every AR request. Available binary
+	 * encodings are preferred over JSON, which is always accepted.
+	 */
+	public static synchronized String getAcceptHeader() {
+		if (sAcceptHeader == null) {
+			StringBuilder accept = new StringBuilder();
+			for (ResponseEncoding encoding : values()) {
+				if (encoding != JSON && encoding.isAvailable()) {
+					accept.append(encoding.mContentType).append(", ");
+				}
+			}
+			accept.append(JSON.mContentType).append(";q=0.9, */*;q=0.8");
+			sAcceptHeader = accept.toString();
+		}
+		return sAcceptHeader;
+	}
+}
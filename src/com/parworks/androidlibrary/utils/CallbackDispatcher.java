@@ -0,0 +1,110 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Decides which thread the listeners of an asynchronous call are called on.
+ * By default they are called on the Android main thread, which suits UI code
+ * but costs a thread hop per call, and time on a busy main thread, for
+ * background work chaining one call into the next.
+ *
+ * Set a dispatcher for every call of a client with setCallbackDispatcher on
+ * ARSites, ARSite or ARAuth, or for the calls made within a block through
+ * RequestContext, which takes precedence:
+ *
+ *     RequestContext previous = RequestContext.attach(new RequestContext(null,
+ *             null, null, CallbackDispatcher.direct()));
+ *     try {
+ *         site.getSiteInfo(listener, onErrorListener);
+ *     } finally {
+ *         RequestContext.restore(previous);
+ *     }
+ */
+public class CallbackDispatcher {
+
+	private static final CallbackDispatcher DIRECT = new CallbackDispatcher(
+			ExecutionEngine.directExecutor());
+
+	private final Executor mExecutor;
+
+	private CallbackDispatcher(Executor executor) {
+		mExecutor = executor;
+	}
+
+	/**
+	 * @return a dispatcher calling listeners on the Android main thread, or
+	 *         on the thread that completes the call where there is no main
+	 *         thread
+	 */
+	public static CallbackDispatcher mainThread() {
+		Executor mainThread = ExecutionEngine.mainThreadExecutor();
+		return mainThread == null ? DIRECT : new CallbackDispatcher(mainThread);
+	}
+
+	/**
+	 * @return a dispatcher calling listeners on the thread that completes the
+	 *         call, such as an I/O or polling thread. Listeners must return
+	 *         quickly and must not block, as they hold up that thread.
+	 */
+	public static CallbackDispatcher direct() {
+		return DIRECT;
+	}
+
+	/**
+	 * @return a dispatcher calling listeners on the given executor, for
+	 *         example the one running the caller's pipeline
+	 */
+	public static CallbackDispatcher executor(Executor executor) {
+		return new CallbackDispatcher(executor);
+	}
+
+	/**
+	 * Calls a listener through this dispatcher.
+	 */
+	public void dispatch(Runnable callback) {
+		mExecutor.execute(callback);
+	}
+
+	/**
+	 * Picks the dispatcher for a call made on the calling thread: the one set
+	 * by its RequestContext, otherwise the client's, otherwise the default
+	 * ExecutionEngine's callback executor.
+	 *
+	 * @param clientDispatcher
+	 *            the dispatcher set on the client, or null
+	 */
+	public static CallbackDispatcher resolve(CallbackDispatcher clientDispatcher) {
+		return resolve(clientDispatcher, ExecutionEngine.getDefault());
+	}
+
+	/**
+	 * @see #resolve(CallbackDispatcher)
+	 * @param engine
+	 *            the engine whose callback executor is used when neither the
+	 *            context nor the client sets a dispatcher
+	 */
+	public static CallbackDispatcher resolve(CallbackDispatcher clientDispatcher,
+			ExecutionEngine engine) {
+		RequestContext context = RequestContext.current();
+		if (context != null && context.getCallbackDispatcher() != null) {
+			return context.getCallbackDispatcher();
+		}
+		if (clientDispatcher != null) {
+			return clientDispatcher;
+		}
+		return new CallbackDispatcher(engine.getCallbackExecutor());
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the SDK's background work. Asynchronous calls run on a pool of I/O
+ * threads, and images are decoded and scaled for upload on a pool sized to
+ * the CPUs, so concurrent calls run concurrently instead of queueing behind
+ * each other as they would on AsyncTask's serial executor, and a slow upload
+ * never holds up an image being shrunk.
+ *
+ * A call's response is decoded and parsed on the I/O thread that made the
+ * request, once the body has been read.
+ *
+ * Callbacks are delivered on the Android main thread when there is one. The
+ * main thread is found reflectively, so the SDK also runs on a plain JVM,
+ * where callbacks are called on the I/O thread instead.
+ *
+ * The engine can be given the application's own executors:
+ *
+ *     ExecutionEngine.setDefault(new ExecutionEngine(appIoExecutor,
+ *             appCpuExecutor, ExecutionEngine.mainThreadExecutor()));
+ */
+public class ExecutionEngine {
+
+	public static final int DEFAULT_IO_THREADS = 8;
+
+	private static ExecutionEngine sDefault;
+	private static Executor sMainThreadExecutor;
+	private static boolean sMainThreadLookedUp;
+
+	private final Executor mIoExecutor;
+	private final Executor mCpuExecutor;
+	private final Executor mCallbackExecutor;
+	// the pools this engine created, and so shuts down
+	private final ExecutorService[] mOwnedPools;
+
+	/**
+	 * Creates an engine with DEFAULT_IO_THREADS I/O threads and a CPU thread
+	 * per processor.
+	 */
+	public ExecutionEngine() {
+		this(DEFAULT_IO_THREADS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param ioThreads
+	 *            the most network calls run at once
+	 * @param cpuThreads
+	 *            the most images decoded or encoded at once
+	 */
+	public ExecutionEngine(int ioThreads, int cpuThreads) {
+		ExecutorService io = Executors.newFixedThreadPool(ioThreads,
+				new NamedThreadFactory("io"));
+		ExecutorService cpu = Executors.newFixedThreadPool(cpuThreads,
+				new NamedThreadFactory("cpu"));
+		mIoExecutor = io;
+		mCpuExecutor = cpu;
+		mCallbackExecutor = defaultCallbackExecutor();
+		mOwnedPools = new ExecutorService[] { io, cpu };
+	}
+
+	/**
+	 * Creates an engine on executors owned by the caller, which shutdown
+	 * leaves running.
+	 *
+	 * @param callbackExecutor
+	 *            the executor callbacks are delivered on, or null to call
+	 *            them on the thread that completes the work
+	 */
+	public ExecutionEngine(Executor ioExecutor, Executor cpuExecutor,
+			Executor callbackExecutor) {
+		mIoExecutor = ioExecutor;
+		mCpuExecutor = cpuExecutor;
+		mCallbackExecutor = callbackExecutor == null ? directExecutor()
+				: callbackExecutor;
+		mOwnedPools = new ExecutorService[0];
+	}
+
+	/**
+	 * @return the engine used by every SDK call, created on first use
+	 */
+	public static synchronized ExecutionEngine getDefault() {
+		if (sDefault == null) {
+			sDefault = new ExecutionEngine();
+		}
+		return sDefault;
+	}
+
+	/**
+	 * Replaces the engine used by SDK calls made afterwards. The previous
+	 * engine is not shut down.
+	 */
+	public static synchronized void setDefault(ExecutionEngine engine) {
+		sDefault = engine;
+	}
+
+	public Executor getIoExecutor() {
+		return mIoExecutor;
+	}
+
+	public Executor getCpuExecutor() {
+		return mCpuExecutor;
+	}
+
+	public Executor getCallbackExecutor() {
+		return mCallbackExecutor;
+	}
+
+	/**
+	 * Stops the pools this engine created once their work is done. Executors
+	 * passed in by the caller are left alone.
+	 */
+	public void shutdown() {
+		for (ExecutorService pool : mOwnedPools) {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @return an executor that runs tasks on the Android main thread, or null
+	 *         if there is no main looper, as on a plain JVM
+	 */
+	public static synchronized Executor mainThreadExecutor() {
+		if (!sMainThreadLookedUp) {
+			sMainThreadLookedUp = true;
+			sMainThreadExecutor = lookUpMainThread();
+		}
+		return sMainThreadExecutor;
+	}
+
+	/**
+	 * @return an executor that runs tasks on the calling thread
+	 */
+	public static Executor directExecutor() {
+		return DirectExecutor.INSTANCE;
+	}
+
+	private static Executor defaultCallbackExecutor() {
+		Executor mainThread = mainThreadExecutor();
+		return mainThread == null ? directExecutor() : mainThread;
+	}
+
+	private static Executor lookUpMainThread() {
+		try {
+			Class<?> looperClass = Class.forName("android.os.Looper");
+			Object mainLooper = looperClass.getMethod("getMainLooper").invoke(
+					null);
+			if (mainLooper == null) {
+				return null;
+			}
+			Class<?> handlerClass = Class.forName("android.os.Handler");
+			Constructor<?> constructor = handlerClass.getConstructor(looperClass);
+			Object handler = constructor.newInstance(mainLooper);
+			Method post = handlerClass.getMethod("post", Runnable.class);
+			return new HandlerExecutor(handler, post);
+		} catch (Exception e) {
+			// not on Android, or the android classes are stubs
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	private enum DirectExecutor implements Executor {
+		INSTANCE;
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	}
+
+	/**
+	 * Posts tasks to an android.os.Handler held without linking against it.
+	 */
+	private static class HandlerExecutor implements Executor {
+
+		private final Object mHandler;
+		private final Method mPost;
+
+		HandlerExecutor(Object handler, Method post) {
+			mHandler = handler;
+			mPost = post;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			try {
+				mPost.invoke(mHandler, command);
+			} catch (Exception e) {
+				throw new IllegalStateException("Couldn't post to the main thread.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+/**
+ * Reads the EXIF orientation tag of a JPEG and applies it to decoded pixels.
+ * Cameras usually store a photo in the sensor's orientation and record how it
+ * should be turned in this tag, which is lost when the image is re-encoded.
+ */
+public final class ExifOrientation {
+
+	/** The pixels are stored upright */
+	public static final int NORMAL = 1;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TYPE_SHORT = 3;
+
+	private ExifOrientation() {
+	}
+
+	/**
+	 * @return the orientation tag of a JPEG, 1 to 8, or NORMAL if it has none
+	 *         or the image is not a JPEG
+	 */
+	public static int read(byte[] jpeg, int length) {
+		if (length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8) {
+			return NORMAL;
+		}
+		int pos = 2;
+		while (pos + 4 <= length) {
+			if ((jpeg[pos] & 0xff) != 0xff) {
+				return NORMAL;
+			}
+			int marker = jpeg[pos + 1] & 0xff;
+			if (marker == 0xff) {
+				// fill byte
+				pos++;
+				continue;
+			}
+			if (marker == 0xd9 || marker == 0xda) {
+				// the metadata segments all come before the image data
+				return NORMAL;
+			}
+			int segmentLength = readShort(jpeg, pos + 2, false);
+			if (segmentLength < 2 || pos + 2 + segmentLength > length) {
+				return NORMAL;
+			}
+			if (marker == 0xe1) {
+				int orientation = readExif(jpeg, pos + 4, pos + 2 + segmentLength);
+				if (orientation != 0) {
+					return orientation;
+				}
+			}
+			pos += 2 + segmentLength;
+		}
+		return NORMAL;
+	}
+
+	/**
+	 * @return true if applying the orientation swaps the width and height
+	 */
+	public static boolean swapsDimensions(int orientation) {
+		return orientation >= 5 && orientation <= 8;
+	}
+
+	/**
+	 * Turns and mirrors pixels as the orientation tag says.
+	 *
+	 * @param pixels
+	 *            the pixels as stored, row by row
+	 * @return the upright pixels, whose width and height are swapped if
+	 *         swapsDimensions(orientation)
+	 */
+	public static int[] apply(int[] pixels, int width, int height,
+			int orientation) {
+		if (orientation < 2 || orientation > 8) {
+			return pixels;
+		}
+		int[] upright = new int[width * height];
+		int uprightWidth = swapsDimensions(orientation) ? height : width;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int ux;
+				int uy;
+				switch (orientation) {
+				case 2: // mirrored
+					ux = width - 1 - x;
+					uy = y;
+					break;
+				case 3: // turned 180 degrees
+					ux = width - 1 - x;
+					uy = height - 1 - y;
+					break;
+				case 4: // mirrored vertically
+					ux = x;
+					uy = height - 1 - y;
+					break;
+				case 5: // transposed
+					ux = y;
+					uy = x;
+					break;
+				case 6: // turned 90 degrees clockwise
+					ux = height - 1 - y;
+					uy = x;
+					break;
+				case 7: // transversed
+					ux = height - 1 - y;
+					uy = width - 1 - x;
+					break;
+				default: // 8, turned 90 degrees counterclockwise
+					ux = y;
+					uy = width - 1 - x;
+					break;
+				}
+				upright[uy * uprightWidth + ux] = pixels[y * width + x];
+			}
+		}
+		return upright;
+	}
+
+	/**
+	 * @return the orientation in an APP1 segment's payload, or 0 if it is not
+	 *         EXIF or has no valid orientation
+	 */
+	private static int readExif(byte[] b, int start, int end) {
+		if (end - start < 14 || b[start] != 'E' || b[start + 1] != 'x'
+				|| b[start + 2] != 'i' || b[start + 3] != 'f'
+				|| b[start + 4] != 0 || b[start + 5] != 0) {
+			return 0;
+		}
+		int tiff = start + 6;
+		boolean littleEndian;
+		if (b[tiff] == 'I' && b[tiff + 1] == 'I') {
+			littleEndian = true;
+		} else if (b[tiff] == 'M' && b[tiff + 1] == 'M') {
+			littleEndian = false;
+		} else {
+			return 0;
+		}
+		if (readShort(b, tiff + 2, littleEndian) != 42) {
+			return 0;
+		}
+		long ifdOffset = readInt(b, tiff + 4, littleEndian);
+		if (ifdOffset < 8 || tiff + ifdOffset + 2 > end) {
+			return 0;
+		}
+		int ifd = tiff + (int) ifdOffset;
+		int entries = readShort(b, ifd, littleEndian);
+		for (int i = 0; i < entries; i++) {
+			int entry = ifd + 2 + 12 * i;
+			if (entry + 12 > end) {
+				return 0;
+			}
+			if (readShort(b, entry, littleEndian) == TAG_ORIENTATION) {
+				if (readShort(b, entry + 2, littleEndian) != TYPE_SHORT) {
+					return 0;
+				}
+				int orientation = readShort(b, entry + 8, littleEndian);
+				return orientation >= 1 && orientation <= 8 ? orientation : 0;
+			}
+		}
+		return 0;
+	}
+
+	private static int readShort(byte[] b, int pos, boolean littleEndian) {
+		int first = b[pos] & 0xff;
+		int second = b[pos + 1] & 0xff;
+		return littleEndian ? (second << 8) | first : (first << 8) | second;
+	}
+
+	private static long readInt(byte[] b, int pos, boolean littleEndian) {
+		long high = readShort(b, littleEndian ? pos + 2 : pos, littleEndian);
+		long low = readShort(b, littleEndian ? pos : pos + 2, littleEndian);
+		return (high << 16) | low;
+	}
+}
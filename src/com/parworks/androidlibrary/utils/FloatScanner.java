@@ -0,0 +1,221 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+/**
+ * Parses comma separated lists of floats, such as the vertices string returned
+ * by the augment result endpoint, straight into a float array. Unlike
+ * String.split followed by Float.parseFloat, no intermediate strings are
+ * created for ordinary decimal input. Results are always the same as
+ * Float.parseFloat's; inputs the fast path can't round exactly are handed to
+ * it.
+ */
+public final class FloatScanner {
+
+	// mantissas up to 10^15 are below 2^53, so exact as doubles
+	private static final int MAX_MANTISSA_DIGITS = 15;
+
+	// the bits of a double's significand below float precision when the
+	// double lies exactly halfway between two floats
+	private static final long FLOAT_ROUNDING_BITS = (1L << 29) - 1;
+	private static final long FLOAT_HALFWAY = 1L << 28;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private FloatScanner() {
+	}
+
+	/**
+	 * Counts the values in a comma separated list without parsing them. Used
+	 * to size the destination array before calling scan.
+	 *
+	 * @param text
+	 *            the comma separated values
+	 * @return the number of values scan will produce
+	 */
+	public static int countValues(CharSequence text) {
+		int length = trimmedLength(text);
+		if (length == 0) {
+			return 0;
+		}
+		int count = 1;
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(i) == ',') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Parses every value in a comma separated list into dst.
+	 *
+	 * @param text
+	 *            the comma separated values
+	 * @param dst
+	 *            the array to write into. Must have room for
+	 *            countValues(text) values from offset.
+	 * @param offset
+	 *            the index in dst of the first value
+	 * @return the number of values written
+	 * @throws NumberFormatException
+	 *             if a value is not a number
+	 */
+	public static int scan(CharSequence text, float[] dst, int offset) {
+		int length = trimmedLength(text);
+		if (length == 0) {
+			return 0;
+		}
+		int written = 0;
+		int start = 0;
+		while (start <= length) {
+			int end = start;
+			while (end < length && text.charAt(end) != ',') {
+				end++;
+			}
+			dst[offset + written] = parse(text, start, end);
+			written++;
+			start = end + 1;
+		}
+		return written;
+	}
+
+	/**
+	 * Parses a single float from text[start, end).
+	 */
+	public static float parse(CharSequence text, int start, int end) {
+		while (start < end && isWhitespace(text.charAt(start))) {
+			start++;
+		}
+		while (end > start && isWhitespace(text.charAt(end - 1))) {
+			end--;
+		}
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+			negative = text.charAt(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int mantissaDigits = 0;
+		int exponent = 0;
+		boolean sawDigit = false;
+
+		while (i < end && isDigit(text.charAt(i))) {
+			sawDigit = true;
+			if (mantissaDigits == MAX_MANTISSA_DIGITS) {
+				return parseSlow(text, start, end);
+			}
+			mantissa = mantissa * 10 + (text.charAt(i) - '0');
+			if (mantissa != 0) {
+				mantissaDigits++;
+			}
+			i++;
+		}
+		if (i < end && text.charAt(i) == '.') {
+			i++;
+			while (i < end && isDigit(text.charAt(i))) {
+				sawDigit = true;
+				if (mantissaDigits == MAX_MANTISSA_DIGITS) {
+					return parseSlow(text, start, end);
+				}
+				mantissa = mantissa * 10 + (text.charAt(i) - '0');
+				if (mantissa != 0) {
+					mantissaDigits++;
+				}
+				exponent--;
+				i++;
+			}
+		}
+		if (sawDigit && i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+				negativeExponent = text.charAt(i) == '-';
+				i++;
+			}
+			int explicitExponent = 0;
+			boolean sawExponentDigit = false;
+			while (i < end && isDigit(text.charAt(i))) {
+				sawExponentDigit = true;
+				if (explicitExponent < 10000) {
+					explicitExponent = explicitExponent * 10 + (text.charAt(i) - '0');
+				}
+				i++;
+			}
+			if (!sawExponentDigit) {
+				return parseSlow(text, start, end);
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+
+		if (!sawDigit || i != end) {
+			// NaN, Infinity, hex floats and malformed input
+			return parseSlow(text, start, end);
+		}
+		if (mantissa == 0) {
+			return negative ? -0.0f : 0.0f;
+		}
+
+		// the mantissa and the power of ten are exact doubles, so one
+		// multiplication or division rounds the value correctly to a double
+		double value;
+		if (exponent == 0) {
+			value = mantissa;
+		} else if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+			value = mantissa * POWERS_OF_TEN[exponent];
+		} else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+			value = mantissa / POWERS_OF_TEN[-exponent];
+		} else {
+			return parseSlow(text, start, end);
+		}
+		// rounding that double to a float rounds the same way as the decimal
+		// would, unless the double landed exactly halfway between two floats
+		if ((Double.doubleToRawLongBits(value) & FLOAT_ROUNDING_BITS) == FLOAT_HALFWAY) {
+			return parseSlow(text, start, end);
+		}
+		return (float) (negative ? -value : value);
+	}
+
+	private static float parseSlow(CharSequence text, int start, int end) {
+		return Float.parseFloat(text.subSequence(start, end).toString());
+	}
+
+	private static int trimmedLength(CharSequence text) {
+		if (text == null) {
+			return 0;
+		}
+		int length = text.length();
+		while (length > 0 && isWhitespace(text.charAt(length - 1))) {
+			length--;
+		}
+		// a trailing separator does not start another value
+		if (length > 0 && text.charAt(length - 1) == ',') {
+			length--;
+		}
+		return length;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+}
@@ -1,9 +1,12 @@
 package com.parworks.androidlibrary.utils;
 
-import android.os.AsyncTask;
+import com.parworks.androidlibrary.ar.CancellationToken;
 
-
-public class GenericAsyncTask<T> extends AsyncTask<Void, Void, GenericAsyncTask.GenericResult<T>>{
+/**
+ * Runs a call on the I/O threads of an ExecutionEngine and delivers its
+ * result on the engine's callback executor, the main thread on Android.
+ */
+public class GenericAsyncTask<T> {
 	
 	static class GenericResult<T> {
 		public T result = null;
@@ -17,25 +20,89 @@ public class GenericAsyncTask<T> extends AsyncTask<Void, Void, GenericAsyncTask.
 	}
 
 	private GenericCallback<T> mCallback;
+	private final CancellationToken mCancellationToken;
+	private final ExecutionEngine mEngine;
+	private CallbackDispatcher mCallbackDispatcher;
 	
 	public GenericAsyncTask(GenericCallback<T> callback) {
+		this(callback, new CancellationToken());
+	}
+
+	/**
+	 * @param cancellationToken
+	 *            cancels the call. Neither onComplete nor onError is called
+	 *            once it is cancelled.
+	 */
+	public GenericAsyncTask(GenericCallback<T> callback, CancellationToken cancellationToken) {
+		this(callback, cancellationToken, ExecutionEngine.getDefault());
+	}
+
+	public GenericAsyncTask(GenericCallback<T> callback, CancellationToken cancellationToken,
+			ExecutionEngine engine) {
 		mCallback = callback;
+		mCancellationToken = cancellationToken;
+		mEngine = engine;
+	}
+
+	public CancellationToken getCancellationToken() {
+		return mCancellationToken;
+	}
+
+	/**
+	 * Sets the dispatcher onComplete and onError are called through, unless
+	 * the calling thread's RequestContext sets one.
+	 *
+	 * @param callbackDispatcher
+	 *            the dispatcher, or null for the engine's callback executor
+	 */
+	public void setCallbackDispatcher(CallbackDispatcher callbackDispatcher) {
+		mCallbackDispatcher = callbackDispatcher;
 	}
 
-	@Override
-	protected GenericResult<T> doInBackground(Void... params) {
+	/**
+	 * Starts the call on the engine's I/O threads. The priority and site set
+	 * by the calling thread's RequestContext carry over to the call.
+	 */
+	public GenericAsyncTask<T> execute() {
+		final RequestContext caller = RequestContext.current();
+		final CallbackDispatcher dispatcher = CallbackDispatcher.resolve(
+				mCallbackDispatcher, mEngine);
+		mEngine.getIoExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				final GenericResult<T> genericResult = doInBackground(caller);
+				dispatcher.dispatch(new Runnable() {
+					@Override
+					public void run() {
+						onPostExecute(genericResult);
+					}
+				});
+			}
+		});
+		return this;
+	}
+
+	private GenericResult<T> doInBackground(RequestContext caller) {
 		GenericResult<T> genericResult = new GenericResult<T>();
+		RequestContext context = caller == null ? new RequestContext(mCancellationToken)
+				: new RequestContext(mCancellationToken, caller.getPriority(),
+						caller.getSiteId(), caller.getCallbackDispatcher());
+		RequestContext previous = RequestContext.attach(context);
 		try {
+			mCancellationToken.throwIfCancelled();
 			genericResult.result = mCallback.toCall();
 		} catch(Exception error) {
 			genericResult.error = error ;
+		} finally {
+			RequestContext.restore(previous);
 		}
 		return genericResult;
 	}
 	
-	@Override
-	protected void onPostExecute(GenericResult<T> genericResult) {
-		super.onPostExecute(genericResult);
+	private void onPostExecute(GenericResult<T> genericResult) {
+		if (mCancellationToken.isCancelled()) {
+			return;
+		}
 		if(genericResult.result != null ) {
 			mCallback.onComplete(genericResult.result);
 		} else {
@@ -21,14 +21,33 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 import com.parworks.androidlibrary.ar.ARException;
+import com.parworks.androidlibrary.ar.CancellationToken;
+import com.parworks.androidlibrary.response.ResponseEncoding;
 
 
 
@@ -66,10 +85,25 @@ public class HttpUtils {
 	public final static String RETRIEVE_KEY_PATH = "/ar/mars/user/account/getkey";
 	public final static String HEALTH_CHECK_PATH = "/ar/ping";
 	
+	/** The default number of pooled connections to the api server */
+	public final static int DEFAULT_MAX_CONNECTIONS = 4;
+	
+	// api responses up to this size are read into memory by release()
+	private final static long MAX_BUFFERED_BYTES = 256 * 1024;
+	
+	private static HttpClient sHttpClient;
+	private static HttpClient sLongPollHttpClient;
+	private static int sMaxConnections = DEFAULT_MAX_CONNECTIONS;
+	private static final RequestScheduler sScheduler = new RequestScheduler(DEFAULT_MAX_CONNECTIONS);
+	
 	
 	String mTime;
 	String mApiKey;
 	String mSignature;
+	RequestScheduler.Priority mPriority = RequestScheduler.Priority.INTERACTIVE;
+	String mSiteId;
+	boolean mLongPoll;
+	int mTimeoutMillis;
 	
 	public HttpUtils(String apiKey, String time, String signature) {
 		mTime = time;
@@ -82,6 +116,239 @@ public class HttpUtils {
 		
 	}
 	
+	/**
+	 * Sets how many connections to each server are kept open and reused.
+	 * Concurrent requests beyond this wait for a connection. Takes effect for
+	 * requests made after the call. The previous pools are shut down, so
+	 * requests still in flight on them fail.
+	 */
+	public static synchronized void setMaxConnections(int maxConnections) {
+		sMaxConnections = maxConnections;
+		shutdown(sHttpClient);
+		shutdown(sLongPollHttpClient);
+		sHttpClient = null;
+		sLongPollHttpClient = null;
+		sScheduler.setMaxConcurrent(maxConnections);
+	}
+	
+	private static void shutdown(HttpClient httpClient) {
+		if (httpClient != null) {
+			httpClient.getConnectionManager().shutdown();
+		}
+	}
+	
+	public static synchronized int getMaxConnections() {
+		return sMaxConnections;
+	}
+	
+	/**
+	 * Returns the scheduler every request waits in for one of the
+	 * connections. Use it to weight sites and read the queue wait of each
+	 * priority class.
+	 */
+	public static RequestScheduler getRequestScheduler() {
+		return sScheduler;
+	}
+	
+	/**
+	 * Sets the priority of the requests made with this object, unless the
+	 * caller's RequestContext sets one. The default is INTERACTIVE.
+	 */
+	public void setPriority(RequestScheduler.Priority priority) {
+		mPriority = priority;
+	}
+	
+	/**
+	 * Sets the site the requests made with this object are scheduled as,
+	 * unless the caller's RequestContext sets one.
+	 */
+	public void setSiteId(String siteId) {
+		mSiteId = siteId;
+	}
+	
+	/**
+	 * Marks the requests made with this object as long polls, which the
+	 * server may hold open until it has an answer. Long polls use their own
+	 * pool of connections and do not wait in or take a slot of the
+	 * RequestScheduler, so however many are waiting they don't hold up other
+	 * requests.
+	 */
+	public void setLongPoll(boolean longPoll) {
+		mLongPoll = longPoll;
+	}
+	
+	/**
+	 * Sets how long connecting, and then each read of the response, may take
+	 * before the requests made with this object fail. The default, 0, waits
+	 * forever.
+	 */
+	public void setTimeout(int timeoutMillis) {
+		mTimeoutMillis = timeoutMillis;
+	}
+	
+	/**
+	 * Returns the client shared by all requests, so connections are pooled
+	 * and kept alive between requests instead of opened for each one.
+	 */
+	static synchronized HttpClient getHttpClient() {
+		if (sHttpClient == null) {
+			sHttpClient = newHttpClient();
+		}
+		return sHttpClient;
+	}
+	
+	/**
+	 * Returns the client shared by long polls, kept apart from getHttpClient()
+	 * so long polls can't use up its connections.
+	 */
+	static synchronized HttpClient getLongPollHttpClient() {
+		if (sLongPollHttpClient == null) {
+			sLongPollHttpClient = newHttpClient();
+		}
+		return sLongPollHttpClient;
+	}
+	
+	private static HttpClient newHttpClient() {
+		HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, sMaxConnections * 2);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(sMaxConnections));
+		// every request is signed, so no state is kept between requests
+		params.setParameter(ClientPNames.COOKIE_POLICY,
+				CookiePolicy.IGNORE_COOKIES);
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory
+				.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory
+				.getSocketFactory(), 443));
+
+		return new DefaultHttpClient(new ThreadSafeClientConnManager(
+				params, registry), params);
+	}
+	
+	/**
+	 * Reads the body of a small api response into memory, which returns its
+	 * connection to the pool even if the caller never reads the body. Other
+	 * bodies, such as images, are left to be streamed; the caller must read
+	 * or close their content to release the connection.
+	 */
+	private static HttpResponse release(HttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity != null && isSmallApiResponse(entity)) {
+			response.setEntity(new BufferedHttpEntity(entity));
+		}
+		return response;
+	}
+	
+	private static boolean isSmallApiResponse(HttpEntity entity) {
+		// a body of unknown length, such as a chunked one, may be any size,
+		// so it is streamed
+		long length = entity.getContentLength();
+		if (length < 0 || length > MAX_BUFFERED_BYTES) {
+			return false;
+		}
+		Header contentType = entity.getContentType();
+		if (contentType == null) {
+			return true;
+		}
+		String type = contentType.getValue().toLowerCase();
+		for (ResponseEncoding encoding : ResponseEncoding.values()) {
+			if (type.startsWith(encoding.getContentType())) {
+				return true;
+			}
+		}
+		// error pages
+		return type.startsWith("text/");
+	}
+	
+	/**
+	 * Executes a request once the scheduler lets it, aborting it if the
+	 * calling thread's RequestContext is cancelled while it is in flight.
+	 * Long polls are not scheduled.
+	 */
+	private HttpResponse execute(HttpClient httpClient, final HttpRequestBase request) {
+		return execute(httpClient, request, true);
+	}
+	
+	/**
+	 * @param api
+	 *            false for a request outside the api, which is neither
+	 *            scheduled nor has its body buffered
+	 */
+	private HttpResponse execute(HttpClient httpClient, final HttpRequestBase request,
+			boolean api) {
+		RequestContext context = RequestContext.current();
+		CancellationToken token = null;
+		RequestScheduler.Priority priority = mPriority;
+		String siteId = mSiteId;
+		if (context != null) {
+			token = context.getCancellationToken();
+			if (context.getPriority() != null) {
+				priority = context.getPriority();
+			}
+			if (context.getSiteId() != null) {
+				siteId = context.getSiteId();
+			}
+		}
+
+		if (mTimeoutMillis > 0) {
+			HttpConnectionParams.setConnectionTimeout(request.getParams(), mTimeoutMillis);
+			HttpConnectionParams.setSoTimeout(request.getParams(), mTimeoutMillis);
+		}
+
+		final boolean scheduled = api && !mLongPoll;
+		if (scheduled) {
+			sScheduler.acquire(priority, siteId, token);
+		}
+		Runnable abort = null;
+		try {
+			if (token != null) {
+				token.throwIfCancelled();
+				abort = new Runnable() {
+					@Override
+					public void run() {
+						request.abort();
+					}
+				};
+				token.addCancelListener(abort);
+			}
+			// the body is read before the slot is released
+			HttpResponse response = httpClient.execute(request);
+			return api ? release(response) : response;
+		} catch (ClientProtocolException e) {
+			throw new ARException("Couldn't create site: The HTTP response from the server was invalid.",e);
+		} catch (IOException e) {
+			if (token != null) {
+				token.throwIfCancelled();
+			}
+			throw new ARException("Couldn't create site: The HTTP connection was aborted or a problem occurred.",e);
+		} finally {
+			if (abort != null) {
+				token.removeCancelListener(abort);
+			}
+			if (scheduled) {
+				sScheduler.release();
+			}
+		}
+	}
+	
+	/**
+	 * Synchronous HTTP get of a url outside the api, such as an image on a
+	 * content server. The url is requested as is, without the api headers,
+	 * and the request does not wait in the RequestScheduler. The caller must
+	 * read or close the body to release the connection.
+	 * @param url the absolute url
+	 * @return the http response
+	 */
+	public HttpResponse doGetExternal(String url) {
+		HttpResponse response = execute(getHttpClient(), new HttpGet(url), false);
+		if(response == null) {
+			throw new ARException("The httpresponse was null.");
+		}
+		return response;
+	}
+	
 	/**
 	 * Synchronous HTTP get to the specified url. Sets the apikey, salt, and signature as headers.
 	 * @param apiKey the user's api key.
@@ -107,21 +374,15 @@ public class HttpUtils {
 
 		url = appendQueryStringToUrl(url, queryString);
 
-		DefaultHttpClient httpClient = new DefaultHttpClient();
+		HttpClient httpClient = mLongPoll ? getLongPollHttpClient() : getHttpClient();
 		HttpGet getRequest = new HttpGet(url);
 
 		getRequest.setHeader("apikey", mApiKey);
 		getRequest.setHeader("salt", mTime);
 		getRequest.setHeader("signature", mSignature);
+		getRequest.setHeader("Accept", ResponseEncoding.getAcceptHeader());
 
-		HttpResponse response = null;
-		try {
-			response = httpClient.execute(getRequest);
-		} catch (ClientProtocolException e) {
-			throw new ARException("Couldn't create site: The HTTP response from the server was invalid.",e);
-		} catch (IOException e) {
-			throw new ARException("Couldn't create site: The HTTP connection was aborted or a problem occurred.",e);
-		}
+		HttpResponse response = execute(httpClient, getRequest);
 		if(response == null) {
 			throw new ARException("The httpresponse was null.");
 		}
@@ -158,28 +419,19 @@ public class HttpUtils {
 			url = appendQueryStringToUrl(url, queryString);		
 			
 			
-			DefaultHttpClient httpClient = new DefaultHttpClient();
+			HttpClient httpClient = mLongPoll ? getLongPollHttpClient() : getHttpClient();
 			HttpPost postRequest = new HttpPost(url);
 			
 			
 			postRequest.setHeader("apikey", mApiKey);
 			postRequest.setHeader("salt",mTime);
 			postRequest.setHeader("signature",mSignature);
+			postRequest.setHeader("Accept", ResponseEncoding.getAcceptHeader());
 			
 			
 			
 			postRequest.setEntity(entity);
-			HttpResponse response = null;
-			
-			try {
-				response = httpClient.execute(postRequest);
-			} catch (ClientProtocolException e) {
-				throw new ARException("Couldn't create site: The HTTP response from the server was invalid.",e);
-			} catch (IOException e) {
-				throw new ARException("Couldn't create site: The HTTP connection was aborted or a problem occurred.",e);
-			}
-			
-			return response;
+			return execute(httpClient, postRequest);
 
 	}
 
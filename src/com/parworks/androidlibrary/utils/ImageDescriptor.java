@@ -0,0 +1,127 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+/**
+ * A compact global description of an image held as packed ARGB ints, used to
+ * tell quickly and roughly whether two images show the same scene. It
+ * combines three cheap descriptors that fail in different ways: a coarse
+ * color histogram, which ignores layout; a difference hash, which ignores
+ * color and exposure; and a tiny normalized luminance image, which keeps the
+ * rough layout.
+ *
+ * Like PerceptualHash it uses no platform classes.
+ */
+public final class ImageDescriptor {
+
+	// levels per channel of the color histogram
+	private static final int HISTOGRAM_LEVELS = 4;
+	private static final int HISTOGRAM_BINS = HISTOGRAM_LEVELS
+			* HISTOGRAM_LEVELS * HISTOGRAM_LEVELS;
+	private static final int TINY_SIZE = 8;
+
+	// weights of the histogram, hash and tiny image similarities
+	private static final float HISTOGRAM_WEIGHT = 0.3f;
+	private static final float HASH_WEIGHT = 0.4f;
+	private static final float TINY_WEIGHT = 0.3f;
+
+	private final float[] mHistogram;
+	private final long mHash;
+	private final float[] mTiny;
+
+	private ImageDescriptor(float[] histogram, long hash, float[] tiny) {
+		mHistogram = histogram;
+		mHash = hash;
+		mTiny = tiny;
+	}
+
+	/**
+	 * @param argb
+	 *            the pixels of the image, packed ARGB
+	 * @param width
+	 *            the width of the image, at least getMinimumSize()
+	 * @param height
+	 *            the height of the image, at least getMinimumSize()
+	 */
+	public static ImageDescriptor compute(int[] argb, int width, int height) {
+		int count = width * height;
+		float[] histogram = new float[HISTOGRAM_BINS];
+		for (int i = 0; i < count; i++) {
+			int pixel = argb[i];
+			int r = ((pixel >> 16) & 0xff) * HISTOGRAM_LEVELS >> 8;
+			int g = ((pixel >> 8) & 0xff) * HISTOGRAM_LEVELS >> 8;
+			int b = (pixel & 0xff) * HISTOGRAM_LEVELS >> 8;
+			histogram[(r * HISTOGRAM_LEVELS + g) * HISTOGRAM_LEVELS + b]++;
+		}
+		for (int i = 0; i < HISTOGRAM_BINS; i++) {
+			histogram[i] /= count;
+		}
+
+		int[] grid = ImageResampler.downscale(argb, width, height, TINY_SIZE,
+				TINY_SIZE, null);
+		float[] tiny = new float[TINY_SIZE * TINY_SIZE];
+		float mean = 0;
+		for (int i = 0; i < tiny.length; i++) {
+			int pixel = grid[i];
+			tiny[i] = 0.299f * ((pixel >> 16) & 0xff) + 0.587f
+					* ((pixel >> 8) & 0xff) + 0.114f * (pixel & 0xff);
+			mean += tiny[i];
+		}
+		mean /= tiny.length;
+		float norm = 0;
+		for (int i = 0; i < tiny.length; i++) {
+			tiny[i] -= mean;
+			norm += tiny[i] * tiny[i];
+		}
+		norm = (float) Math.sqrt(norm);
+		if (norm > 0) {
+			for (int i = 0; i < tiny.length; i++) {
+				tiny[i] /= norm;
+			}
+		}
+
+		return new ImageDescriptor(histogram, PerceptualHash.dHash(argb, width,
+				height), tiny);
+	}
+
+	/**
+	 * @return how alike two images look, from 0 for unrelated images to 1
+	 *         for the same image
+	 */
+	public float similarity(ImageDescriptor other) {
+		float intersection = 0;
+		for (int i = 0; i < HISTOGRAM_BINS; i++) {
+			intersection += Math.min(mHistogram[i], other.mHistogram[i]);
+		}
+
+		// unrelated images differ in about half the bits
+		float hash = Math.max(0,
+				1 - PerceptualHash.distance(mHash, other.mHash) / 32f);
+
+		float cosine = 0;
+		for (int i = 0; i < mTiny.length; i++) {
+			cosine += mTiny[i] * other.mTiny[i];
+		}
+
+		return HISTOGRAM_WEIGHT * intersection + HASH_WEIGHT * hash
+				+ TINY_WEIGHT * Math.max(0, cosine);
+	}
+
+	/**
+	 * @return the smallest width or height an image must have to be described
+	 */
+	public static int getMinimumSize() {
+		return Math.max(TINY_SIZE, PerceptualHash.getMinimumSize());
+	}
+}
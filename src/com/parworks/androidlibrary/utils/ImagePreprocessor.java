@@ -0,0 +1,325 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+
+import com.parworks.androidlibrary.ar.ARException;
+import com.parworks.androidlibrary.ar.ARSite.BaseImageProcessingProfile;
+import com.parworks.androidlibrary.ar.CancellationToken;
+
+/**
+ * Shrinks images before they are uploaded for augmentation. The server does
+ * not need a full resolution camera image to localize, and upload size is the
+ * largest cost of an augment on a cellular connection.
+ *
+ * An image is decoded and scaled on the CPU threads of the ExecutionEngine
+ * while the upload request is set up, then compressed to JPEG directly into
+ * the request body. Re-encoding drops all EXIF metadata, so the orientation
+ * tag of a JPEG is applied to the pixels first and the uploaded image is
+ * upright.
+ *
+ * Example:
+ *
+ *     site.setImagePreprocessor(ImagePreprocessor.forProfile(BaseImageProcessingProfile.FASTEST));
+ */
+public class ImagePreprocessor {
+
+	public static final int DEFAULT_JPEG_QUALITY = 80;
+
+	private final int mMaxLongEdge;
+	private final int mJpegQuality;
+
+	/**
+	 * @param maxLongEdge
+	 *            the longest the longer edge of an uploaded image may be, in
+	 *            pixels
+	 * @param jpegQuality
+	 *            the JPEG quality to compress with, 0 to 100
+	 */
+	public ImagePreprocessor(int maxLongEdge, int jpegQuality) {
+		mMaxLongEdge = maxLongEdge;
+		mJpegQuality = jpegQuality;
+	}
+
+	/**
+	 * Returns a preprocessor sized for sites processed with the given profile.
+	 * Profiles that favour accuracy keep more of the image.
+	 */
+	public static ImagePreprocessor forProfile(BaseImageProcessingProfile profile) {
+		return new ImagePreprocessor(getMaxLongEdge(profile), DEFAULT_JPEG_QUALITY);
+	}
+
+	/**
+	 * @return the long edge images are scaled to for sites processed with the
+	 *         given profile
+	 */
+	public static int getMaxLongEdge(BaseImageProcessingProfile profile) {
+		switch (profile) {
+		case FASTEST:
+			return 640;
+		case HIGH_ACCURACY:
+		case HIGH_ROBUSTNESS:
+			return 1600;
+		case MEDIUM_ACCURACY:
+		case MEDIUM_ROBUSTNESS:
+			return 1280;
+		default:
+			return 1024;
+		}
+	}
+
+	public int getMaxLongEdge() {
+		return mMaxLongEdge;
+	}
+
+	public int getJpegQuality() {
+		return mJpegQuality;
+	}
+
+	/**
+	 * Starts shrinking an image on the CPU threads and returns the body to upload
+	 * it with. The image is written when the body is, waiting for the
+	 * shrinking to finish if needed. Call release() on the body once the
+	 * request is done, whether or not it was sent, to free the shrunk image.
+	 *
+	 * @param image
+	 *            the encoded image. It is read and closed on a CPU thread.
+	 * @param filename
+	 *            the filename of the body
+	 */
+	public PreparedImage prepare(InputStream image, String filename) {
+		PreparedImage prepared = new PreparedImage(image, filename,
+				RequestContext.currentCancellationToken());
+		ExecutionEngine.getDefault().getCpuExecutor().execute(prepared.mTask);
+		return prepared;
+	}
+
+	/**
+	 * Decodes an image, scales it down to the long edge and turns it upright.
+	 */
+	Bitmap shrink(InputStream image) throws IOException {
+		byte[] encoded = readFully(image);
+		int orientation = ExifOrientation.read(encoded, encoded.length);
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			throw new ARException("The image to upload could not be decoded.");
+		}
+
+		// subsample while decoding, then scale the rest of the way
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = ImageResampler.sampleSize(options.outWidth,
+				options.outHeight, mMaxLongEdge);
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		Bitmap decoded = BitmapFactory.decodeByteArray(encoded, 0,
+				encoded.length, options);
+		if (decoded == null) {
+			throw new ARException("The image to upload could not be decoded.");
+		}
+
+		int width = decoded.getWidth();
+		int height = decoded.getHeight();
+		int[] size = ImageResampler.scaledSize(width, height, mMaxLongEdge);
+		boolean scale = size[0] != width || size[1] != height;
+		if (!scale && orientation == ExifOrientation.NORMAL) {
+			return decoded;
+		}
+		int[] pixels = new int[width * height];
+		decoded.getPixels(pixels, 0, width, 0, 0, width, height);
+		decoded.recycle();
+		if (scale) {
+			pixels = ImageResampler.downscale(pixels, width, height, size[0],
+					size[1], null);
+			width = size[0];
+			height = size[1];
+		}
+		if (orientation != ExifOrientation.NORMAL) {
+			pixels = ExifOrientation.apply(pixels, width, height, orientation);
+			if (ExifOrientation.swapsDimensions(orientation)) {
+				int swap = width;
+				width = height;
+				height = swap;
+			}
+		}
+		return Bitmap.createBitmap(pixels, width, height,
+				Bitmap.Config.ARGB_8888);
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+		byte[] buffer = new byte[8 * 1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+
+	/**
+	 * The body returned by prepare, which writes the shrunk image as a JPEG
+	 * once it is ready.
+	 */
+	public class PreparedImage extends AbstractContentBody {
+
+		final FutureTask<Bitmap> mTask;
+		private final String mFilename;
+		private final CancellationToken mToken;
+		private final Runnable mCancelListener;
+		// the shrunk image until it is written or released
+		private Bitmap mBitmap;
+		private boolean mReleased;
+
+		PreparedImage(final InputStream image, String filename,
+				final CancellationToken token) {
+			super("image/jpeg");
+			mFilename = filename;
+			mToken = token;
+			mTask = new FutureTask<Bitmap>(new Callable<Bitmap>() {
+				@Override
+				public Bitmap call() throws Exception {
+					try {
+						if (token != null) {
+							token.throwIfCancelled();
+						}
+						Bitmap bitmap = shrink(image);
+						if (!hold(bitmap)) {
+							throw new CancellationException();
+						}
+						return bitmap;
+					} finally {
+						image.close();
+					}
+				}
+			});
+			if (token != null) {
+				mCancelListener = new Runnable() {
+					@Override
+					public void run() {
+						release();
+					}
+				};
+				token.addCancelListener(mCancelListener);
+			} else {
+				mCancelListener = null;
+			}
+		}
+
+		/**
+		 * Keeps the shrunk image for writeTo, or recycles it if the body was
+		 * released meanwhile.
+		 */
+		private synchronized boolean hold(Bitmap bitmap) {
+			if (mReleased) {
+				bitmap.recycle();
+				return false;
+			}
+			mBitmap = bitmap;
+			return true;
+		}
+
+		/**
+		 * Frees the shrunk image if it was not written, and drops the image if
+		 * it has not been shrunk yet. The body can't be written afterwards.
+		 */
+		public void release() {
+			Bitmap unwritten;
+			synchronized (this) {
+				if (mReleased) {
+					return;
+				}
+				mReleased = true;
+				unwritten = mBitmap;
+				mBitmap = null;
+			}
+			mTask.cancel(false);
+			if (unwritten != null) {
+				unwritten.recycle();
+			}
+			if (mToken != null) {
+				mToken.removeCancelListener(mCancelListener);
+			}
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			try {
+				mTask.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while preparing the image.");
+			} catch (CancellationException e) {
+				throw new IOException("The image was dropped because the request was cancelled.");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new ARException("Couldn't prepare the image.", e.getCause());
+			}
+			Bitmap bitmap;
+			synchronized (this) {
+				if (mReleased) {
+					throw new IOException("The image was released before it was written.");
+				}
+				bitmap = mBitmap;
+				mBitmap = null;
+			}
+			if (bitmap == null) {
+				throw new IOException("The image has already been written.");
+			}
+			try {
+				bitmap.compress(CompressFormat.JPEG, mJpegQuality, out);
+			} finally {
+				bitmap.recycle();
+			}
+		}
+
+		@Override
+		public String getFilename() {
+			return mFilename;
+		}
+
+		@Override
+		public String getCharset() {
+			return null;
+		}
+
+		@Override
+		public String getTransferEncoding() {
+			return MIME.ENC_BINARY;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+	}
+}
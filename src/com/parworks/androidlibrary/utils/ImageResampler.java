@@ -0,0 +1,144 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+/**
+ * Resizes images held as packed ARGB ints, one int per pixel in rows, as
+ * returned by Bitmap.getPixels. It uses no platform classes, so it works on
+ * the plain JVM as well as on Android.
+ *
+ * Downscaling averages every source pixel that falls in a destination pixel,
+ * which keeps fine detail from aliasing the way nearest neighbour sampling
+ * does.
+ */
+public final class ImageResampler {
+
+	private ImageResampler() {
+	}
+
+	/**
+	 * Returns the size of an image scaled down so that its longer edge is at
+	 * most maxLongEdge, keeping the aspect ratio. Images already small enough
+	 * keep their size.
+	 *
+	 * @return { width, height }
+	 */
+	public static int[] scaledSize(int width, int height, int maxLongEdge) {
+		int longEdge = Math.max(width, height);
+		if (maxLongEdge <= 0 || longEdge <= maxLongEdge) {
+			return new int[] { width, height };
+		}
+		double scale = (double) maxLongEdge / longEdge;
+		return new int[] { Math.max(1, (int) Math.round(width * scale)),
+				Math.max(1, (int) Math.round(height * scale)) };
+	}
+
+	/**
+	 * Returns the largest power of two an image can be subsampled by while
+	 * decoding, for example with BitmapFactory.Options.inSampleSize, and still
+	 * have a longer edge of at least maxLongEdge. Resampling the subsampled
+	 * image then costs far less than resampling the full one.
+	 */
+	public static int sampleSize(int width, int height, int maxLongEdge) {
+		int longEdge = Math.max(width, height);
+		int sampleSize = 1;
+		if (maxLongEdge <= 0) {
+			return sampleSize;
+		}
+		while (longEdge / (sampleSize * 2) >= maxLongEdge) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Scales an image down by averaging the pixels of each destination pixel's
+	 * area in the source.
+	 *
+	 * @param src
+	 *            the source pixels, packed ARGB
+	 * @param srcWidth
+	 *            the width of the source
+	 * @param srcHeight
+	 *            the height of the source
+	 * @param dstWidth
+	 *            the width to scale to, at most srcWidth
+	 * @param dstHeight
+	 *            the height to scale to, at most srcHeight
+	 * @param dst
+	 *            the array to write to. If it is null or too small a new array
+	 *            is allocated.
+	 * @return the array the scaled pixels were written to
+	 */
+	public static int[] downscale(int[] src, int srcWidth, int srcHeight,
+			int dstWidth, int dstHeight, int[] dst) {
+		if (dstWidth > srcWidth || dstHeight > srcHeight || dstWidth <= 0
+				|| dstHeight <= 0) {
+			throw new IllegalArgumentException("Can't downscale " + srcWidth
+					+ "x" + srcHeight + " to " + dstWidth + "x" + dstHeight);
+		}
+		if (dst == null || dst.length < dstWidth * dstHeight) {
+			dst = new int[dstWidth * dstHeight];
+		}
+
+		// the first source column of each destination column, and one past
+		// the last
+		int[] columnStarts = new int[dstWidth + 1];
+		for (int x = 0; x <= dstWidth; x++) {
+			columnStarts[x] = (int) ((long) x * srcWidth / dstWidth);
+		}
+		long[] a = new long[dstWidth];
+		long[] r = new long[dstWidth];
+		long[] g = new long[dstWidth];
+		long[] b = new long[dstWidth];
+
+		int srcRow = 0;
+		for (int y = 0; y < dstHeight; y++) {
+			int rowEnd = (int) ((long) (y + 1) * srcHeight / dstHeight);
+			int rows = rowEnd - srcRow;
+			for (; srcRow < rowEnd; srcRow++) {
+				int i = srcRow * srcWidth;
+				for (int x = 0; x < dstWidth; x++) {
+					long sa = 0, sr = 0, sg = 0, sb = 0;
+					for (int end = srcRow * srcWidth + columnStarts[x + 1]; i < end; i++) {
+						int pixel = src[i];
+						sa += pixel >>> 24;
+						sr += (pixel >> 16) & 0xff;
+						sg += (pixel >> 8) & 0xff;
+						sb += pixel & 0xff;
+					}
+					a[x] += sa;
+					r[x] += sr;
+					g[x] += sg;
+					b[x] += sb;
+				}
+			}
+
+			int out = y * dstWidth;
+			for (int x = 0; x < dstWidth; x++) {
+				long count = (long) rows * (columnStarts[x + 1] - columnStarts[x]);
+				long half = count / 2;
+				dst[out + x] = (int) ((a[x] + half) / count) << 24
+						| (int) ((r[x] + half) / count) << 16
+						| (int) ((g[x] + half) / count) << 8
+						| (int) ((b[x] + half) / count);
+				a[x] = 0;
+				r[x] = 0;
+				g[x] = 0;
+				b[x] = 0;
+			}
+		}
+		return dst;
+	}
+}
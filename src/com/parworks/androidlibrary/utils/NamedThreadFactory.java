@@ -0,0 +1,39 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named after the library component using them, so
+ * library threads never keep an application alive and are easy to spot in
+ * thread dumps.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	private final String mPrefix;
+	private final AtomicInteger mCount = new AtomicInteger();
+
+	public NamedThreadFactory(String name) {
+		mPrefix = "parworks-" + name + "-";
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, mPrefix + mCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
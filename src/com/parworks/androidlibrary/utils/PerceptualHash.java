@@ -0,0 +1,76 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+/**
+ * Computes 64 bit difference hashes of images held as packed ARGB ints. The
+ * image is reduced to a 9x8 grid of luminance values and each bit records
+ * whether a cell is brighter than its right neighbour, so images that look
+ * alike have hashes that differ in few bits, whatever their size, exposure
+ * or compression.
+ *
+ * Like ImageResampler it uses no platform classes.
+ */
+public final class PerceptualHash {
+
+	private static final int GRID_WIDTH = 9;
+	private static final int GRID_HEIGHT = 8;
+
+	private PerceptualHash() {
+	}
+
+	/**
+	 * @param argb
+	 *            the pixels of the image, packed ARGB
+	 * @param width
+	 *            the width of the image, at least 9
+	 * @param height
+	 *            the height of the image, at least 8
+	 * @return the difference hash of the image
+	 */
+	public static long dHash(int[] argb, int width, int height) {
+		int[] grid = ImageResampler.downscale(argb, width, height, GRID_WIDTH,
+				GRID_HEIGHT, null);
+		long hash = 0;
+		for (int y = 0; y < GRID_HEIGHT; y++) {
+			int row = y * GRID_WIDTH;
+			int left = luminance(grid[row]);
+			for (int x = 1; x < GRID_WIDTH; x++) {
+				int right = luminance(grid[row + x]);
+				hash = (hash << 1) | (left > right ? 1 : 0);
+				left = right;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the number of bits in which two hashes differ, 0 for images that
+	 *         look the same and around 32 for unrelated images
+	 */
+	public static int distance(long hash1, long hash2) {
+		return Long.bitCount(hash1 ^ hash2);
+	}
+
+	/**
+	 * @return the smallest width or height an image must have to be hashed
+	 */
+	public static int getMinimumSize() {
+		return GRID_WIDTH;
+	}
+
+	private static int luminance(int pixel) {
+		return (299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff));
+	}
+}
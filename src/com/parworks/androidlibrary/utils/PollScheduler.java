@@ -0,0 +1,275 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs many recurring polls on a small fixed pool of threads. The next poll
+ * time of every task is kept in one priority queue, at most a fixed number of
+ * polls run at once, and each delay is randomly stretched or shrunk a little
+ * so that tasks started together do not keep polling in bursts.
+ *
+ * If polls become due faster than they can run, they are started late rather
+ * than piling up; how late is reported by getMaxLagMillis() and
+ * getAverageLagMillis(), measured from when each poll was due to when it
+ * actually started running.
+ */
+public class PollScheduler {
+
+	/**
+	 * A recurring poll.
+	 */
+	public interface PollTask {
+		/**
+		 * Polls once.
+		 *
+		 * @return the delay in milliseconds before the next poll, or a
+		 *         negative number to stop polling
+		 */
+		public long poll();
+	}
+
+	/**
+	 * Returned by schedule, used to stop a task.
+	 */
+	public interface Handle {
+		/**
+		 * Stops the task. A poll already running finishes, but the task is
+		 * not polled again.
+		 */
+		public void cancel();
+
+		public boolean isCancelled();
+	}
+
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_MAX_IN_FLIGHT = DEFAULT_THREADS;
+	public static final double DEFAULT_JITTER = 0.1;
+
+	private final PriorityQueue<Entry> mQueue = new PriorityQueue<Entry>();
+	private final ExecutorService mWorkers;
+	private final Thread mDispatcher;
+	private final int mMaxInFlight;
+	private final double mJitter;
+	private final Random mRandom = new Random();
+
+	private int mInFlight;
+	private long mSequence;
+	private boolean mShutdown;
+
+	private long mPollCount;
+	private long mTotalLagMillis;
+	private long mMaxLagMillis;
+
+	public PollScheduler() {
+		this(DEFAULT_THREADS, DEFAULT_MAX_IN_FLIGHT, DEFAULT_JITTER);
+	}
+
+	/**
+	 * @param threads
+	 *            the number of threads polls run on
+	 * @param maxInFlight
+	 *            the most polls that may run at once. More than threads has
+	 *            no effect, as a poll is only handed to a thread that is free.
+	 * @param jitter
+	 *            the fraction by which each delay is randomly changed, for
+	 *            example 0.1 for plus or minus ten percent
+	 */
+	public PollScheduler(int threads, int maxInFlight, double jitter) {
+		mWorkers = Executors.newFixedThreadPool(threads, new NamedThreadFactory(
+				"poll"));
+		mMaxInFlight = Math.min(maxInFlight, threads);
+		mJitter = jitter;
+		mDispatcher = new NamedThreadFactory("poll-dispatch").newThread(
+				new Runnable() {
+					@Override
+					public void run() {
+						dispatch();
+					}
+				});
+		mDispatcher.start();
+	}
+
+	/**
+	 * Starts polling a task.
+	 *
+	 * @param task
+	 *            the task to poll
+	 * @param delayMillis
+	 *            the delay before the first poll
+	 * @return a handle used to stop the task
+	 */
+	public synchronized Handle schedule(PollTask task, long delayMillis) {
+		if (mShutdown) {
+			throw new IllegalStateException("The scheduler was shut down");
+		}
+		Entry entry = new Entry(task);
+		enqueue(entry, delayMillis);
+		return entry;
+	}
+
+	/**
+	 * Stops all polling and releases the scheduler's threads.
+	 */
+	public synchronized void shutdown() {
+		mShutdown = true;
+		mQueue.clear();
+		mWorkers.shutdownNow();
+		notifyAll();
+	}
+
+	/**
+	 * @return the number of tasks waiting for their next poll
+	 */
+	public synchronized int getQueuedCount() {
+		return mQueue.size();
+	}
+
+	public synchronized int getInFlightCount() {
+		return mInFlight;
+	}
+
+	public synchronized long getPollCount() {
+		return mPollCount;
+	}
+
+	/**
+	 * @return the longest time a poll has started after it was due
+	 */
+	public synchronized long getMaxLagMillis() {
+		return mMaxLagMillis;
+	}
+
+	/**
+	 * @return the average time polls have started after they were due
+	 */
+	public synchronized long getAverageLagMillis() {
+		return mPollCount == 0 ? 0 : mTotalLagMillis / mPollCount;
+	}
+
+	public synchronized void resetLagMetrics() {
+		mPollCount = 0;
+		mTotalLagMillis = 0;
+		mMaxLagMillis = 0;
+	}
+
+	private void enqueue(Entry entry, long delayMillis) {
+		if (delayMillis > 0 && mJitter > 0) {
+			delayMillis += (long) (delayMillis * mJitter * (mRandom.nextDouble() * 2 - 1));
+		}
+		entry.mDueMillis = now() + Math.max(delayMillis, 0);
+		entry.mSequence = mSequence++;
+		mQueue.add(entry);
+		notifyAll();
+	}
+
+	private synchronized void dispatch() {
+		while (!mShutdown) {
+			Entry next = mQueue.peek();
+			long wait;
+			if (next == null) {
+				wait = 0;
+			} else if (mInFlight >= mMaxInFlight) {
+				wait = 0;
+			} else {
+				wait = next.mDueMillis - now();
+				if (wait <= 0) {
+					mQueue.poll();
+					if (next.mCancelled) {
+						continue;
+					}
+					mInFlight++;
+					mWorkers.execute(next);
+					continue;
+				}
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private synchronized void started(Entry entry) {
+		long lag = Math.max(now() - entry.mDueMillis, 0);
+		mPollCount++;
+		mTotalLagMillis += lag;
+		mMaxLagMillis = Math.max(mMaxLagMillis, lag);
+	}
+
+	private synchronized void finished(Entry entry, long nextDelayMillis) {
+		mInFlight--;
+		if (!mShutdown && !entry.mCancelled && nextDelayMillis >= 0) {
+			enqueue(entry, nextDelayMillis);
+		} else {
+			notifyAll();
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private class Entry implements Runnable, Handle, Comparable<Entry> {
+		final PollTask mTask;
+		long mDueMillis;
+		long mSequence;
+		volatile boolean mCancelled;
+
+		Entry(PollTask task) {
+			mTask = task;
+		}
+
+		@Override
+		public void run() {
+			long nextDelay = -1;
+			try {
+				if (mCancelled) {
+					return;
+				}
+				started(this);
+				nextDelay = mTask.poll();
+			} finally {
+				finished(this, nextDelay);
+			}
+		}
+
+		@Override
+		public void cancel() {
+			mCancelled = true;
+			synchronized (PollScheduler.this) {
+				mQueue.remove(this);
+				PollScheduler.this.notifyAll();
+			}
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if (mDueMillis != other.mDueMillis) {
+				return mDueMillis < other.mDueMillis ? -1 : 1;
+			}
+			return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+		}
+	}
+}
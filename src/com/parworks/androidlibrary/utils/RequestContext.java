@@ -0,0 +1,159 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+import com.parworks.androidlibrary.ar.CancellationToken;
+
+/**
+ * What a request is being made for, kept for the thread making it so the
+ * transport and the helpers it goes through can see it without it being
+ * passed to every method. GenericAsyncTask attaches a context around each
+ * asynchronous call; synchronous calls made without one are not cancellable.
+ *
+ * A context can also set the priority of the requests made under it, the
+ * site they count against and the thread asynchronous calls made under it
+ * call back on, overriding what the SDK would choose.
+ *
+ * Attach a context for the duration of some work and restore the previous
+ * one afterwards:
+ *
+ *     RequestContext previous = RequestContext.attach(new RequestContext(token));
+ *     try {
+ *         site.augmentImage(image);
+ *     } finally {
+ *         RequestContext.restore(previous);
+ *     }
+ */
+public class RequestContext {
+
+	private static final ThreadLocal<RequestContext> sCurrent = new ThreadLocal<RequestContext>();
+
+	private final CancellationToken mCancellationToken;
+	private final RequestScheduler.Priority mPriority;
+	private final String mSiteId;
+	private final CallbackDispatcher mCallbackDispatcher;
+
+	/**
+	 * @param cancellationToken
+	 *            the token that cancels the work, or null if it can't be
+	 *            cancelled
+	 */
+	public RequestContext(CancellationToken cancellationToken) {
+		this(cancellationToken, null, null);
+	}
+
+	/**
+	 * @param cancellationToken
+	 *            the token that cancels the work, or null if it can't be
+	 *            cancelled
+	 * @param priority
+	 *            the priority of the requests, or null to leave it to the SDK
+	 * @param siteId
+	 *            the site the requests are scheduled as, or null to leave it
+	 *            to the SDK
+	 */
+	public RequestContext(CancellationToken cancellationToken,
+			RequestScheduler.Priority priority, String siteId) {
+		this(cancellationToken, priority, siteId, null);
+	}
+
+	/**
+	 * @param callbackDispatcher
+	 *            the dispatcher for the listeners of asynchronous calls, or
+	 *            null to leave it to the client
+	 * @see #RequestContext(CancellationToken, RequestScheduler.Priority,
+	 *      String)
+	 */
+	public RequestContext(CancellationToken cancellationToken,
+			RequestScheduler.Priority priority, String siteId,
+			CallbackDispatcher callbackDispatcher) {
+		mCancellationToken = cancellationToken;
+		mPriority = priority;
+		mSiteId = siteId;
+		mCallbackDispatcher = callbackDispatcher;
+	}
+
+	/**
+	 * @return the token that cancels the work, or null
+	 */
+	public CancellationToken getCancellationToken() {
+		return mCancellationToken;
+	}
+
+	/**
+	 * @return the priority of the requests, or null
+	 */
+	public RequestScheduler.Priority getPriority() {
+		return mPriority;
+	}
+
+	/**
+	 * @return the site the requests are scheduled as, or null
+	 */
+	public String getSiteId() {
+		return mSiteId;
+	}
+
+	/**
+	 * @return the dispatcher for the listeners of asynchronous calls, or null
+	 */
+	public CallbackDispatcher getCallbackDispatcher() {
+		return mCallbackDispatcher;
+	}
+
+	/**
+	 * @return the context of the calling thread, or null if it has none
+	 */
+	public static RequestContext current() {
+		return sCurrent.get();
+	}
+
+	/**
+	 * Makes a context the calling thread's.
+	 *
+	 * @return the context it replaces, to be passed to restore
+	 */
+	public static RequestContext attach(RequestContext context) {
+		RequestContext previous = sCurrent.get();
+		sCurrent.set(context);
+		return previous;
+	}
+
+	public static void restore(RequestContext previous) {
+		if (previous == null) {
+			sCurrent.remove();
+		} else {
+			sCurrent.set(previous);
+		}
+	}
+
+	/**
+	 * @return the cancellation token of the calling thread's context, or null
+	 */
+	public static CancellationToken currentCancellationToken() {
+		RequestContext context = sCurrent.get();
+		return context == null ? null : context.mCancellationToken;
+	}
+
+	/**
+	 * @throws com.parworks.androidlibrary.ar.ARException
+	 *             if the calling thread's work has been cancelled
+	 */
+	public static void throwIfCancelled() {
+		CancellationToken token = currentCancellationToken();
+		if (token != null) {
+			token.throwIfCancelled();
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.parworks.androidlibrary.ar.ARException;
+import com.parworks.androidlibrary.ar.CancellationToken;
+
+/**
+ * Decides which waiting request is sent next when more requests are made
+ * than HttpUtils has connections, so that background work does not hold up
+ * what the user is waiting for.
+ *
+ * Requests are queued by priority class. A waiting request of a higher class
+ * is always sent before any request of a lower class, whenever it was
+ * queued, and the lower classes together are never given the slots reserved
+ * for interactive requests, so a long bulk upload can't occupy every
+ * connection. Within a class the sites take turns, each sending as many
+ * requests per turn as its weight, so one site's bulk job can't starve the
+ * other sites.
+ *
+ * HttpUtils passes every request through its scheduler, taking the priority
+ * and site from the caller's RequestContext when it has them.
+ */
+public class RequestScheduler {
+
+	/**
+	 * The priority classes, from the most to the least urgent.
+	 */
+	public enum Priority {
+		/** Requests the user is waiting on, such as augmenting an image */
+		INTERACTIVE,
+		/** Requests for data that will probably be needed soon */
+		PREFETCH,
+		/** Large transfers nobody is waiting on, such as adding base images */
+		BULK
+	}
+
+	public static final int DEFAULT_RESERVED_INTERACTIVE = 1;
+
+	// used for requests not made for a site
+	private static final String NO_SITE = "";
+
+	private final Map<Priority, ClassQueue> mQueues = new HashMap<Priority, ClassQueue>();
+	private final Map<String, Integer> mSiteWeights = new HashMap<String, Integer>();
+	private int mMaxConcurrent;
+	private int mReservedInteractive = DEFAULT_RESERVED_INTERACTIVE;
+	private int mInFlight;
+
+	/**
+	 * @param maxConcurrent
+	 *            the most requests sent at once
+	 */
+	public RequestScheduler(int maxConcurrent) {
+		mMaxConcurrent = maxConcurrent;
+		for (Priority priority : Priority.values()) {
+			mQueues.put(priority, new ClassQueue());
+		}
+	}
+
+	public synchronized void setMaxConcurrent(int maxConcurrent) {
+		mMaxConcurrent = maxConcurrent;
+		dispatch();
+	}
+
+	public synchronized int getMaxConcurrent() {
+		return mMaxConcurrent;
+	}
+
+	/**
+	 * Sets how many of the concurrent requests only interactive requests may
+	 * use. The default is 1.
+	 */
+	public synchronized void setReservedInteractive(int reserved) {
+		mReservedInteractive = reserved;
+		dispatch();
+	}
+
+	/**
+	 * Sets how many requests a site sends per turn within its class, relative
+	 * to other sites. The default is 1.
+	 */
+	public synchronized void setSiteWeight(String siteId, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("The weight must be at least 1.");
+		}
+		mSiteWeights.put(siteId, weight);
+	}
+
+	/**
+	 * Waits until the request may be sent. Every successful acquire must be
+	 * followed by a release once the response has been read.
+	 *
+	 * @param siteId
+	 *            the site the request is for, or null
+	 * @param token
+	 *            cancels the wait, or null
+	 * @throws ARException
+	 *             if the token is cancelled or the thread is interrupted
+	 *             while waiting
+	 */
+	public void acquire(Priority priority, String siteId,
+			CancellationToken token) {
+		final Waiter waiter = new Waiter(priority, siteId == null ? NO_SITE
+				: siteId);
+		Runnable cancel = null;
+		synchronized (this) {
+			mQueues.get(priority).add(waiter);
+			dispatch();
+			if (waiter.mGranted) {
+				return;
+			}
+		}
+		if (token != null) {
+			cancel = new Runnable() {
+				@Override
+				public void run() {
+					synchronized (RequestScheduler.this) {
+						RequestScheduler.this.notifyAll();
+					}
+				}
+			};
+			token.addCancelListener(cancel);
+		}
+		try {
+			synchronized (this) {
+				while (!waiter.mGranted) {
+					if (token != null && token.isCancelled()) {
+						mQueues.get(priority).remove(waiter);
+						token.throwIfCancelled();
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						mQueues.get(priority).remove(waiter);
+						Thread.currentThread().interrupt();
+						throw new ARException(
+								"Interrupted while waiting to send the request.", e);
+					}
+				}
+			}
+		} finally {
+			if (cancel != null) {
+				token.removeCancelListener(cancel);
+			}
+		}
+	}
+
+	/**
+	 * Frees the slot taken by acquire, letting the next request be sent.
+	 */
+	public synchronized void release() {
+		mInFlight--;
+		dispatch();
+	}
+
+	/**
+	 * @return the number of requests of the class waiting to be sent
+	 */
+	public synchronized int getQueuedCount(Priority priority) {
+		return mQueues.get(priority).mCount;
+	}
+
+	public synchronized int getInFlightCount() {
+		return mInFlight;
+	}
+
+	/**
+	 * @return the number of requests of the class sent since the metrics were
+	 *         last reset
+	 */
+	public synchronized long getSentCount(Priority priority) {
+		return mQueues.get(priority).mSent;
+	}
+
+	/**
+	 * @return the average time requests of the class waited before being
+	 *         sent
+	 */
+	public synchronized long getAverageQueueWaitMillis(Priority priority) {
+		ClassQueue queue = mQueues.get(priority);
+		return queue.mSent == 0 ? 0 : queue.mTotalWaitMillis / queue.mSent;
+	}
+
+	/**
+	 * @return the longest time a request of the class waited before being
+	 *         sent
+	 */
+	public synchronized long getMaxQueueWaitMillis(Priority priority) {
+		return mQueues.get(priority).mMaxWaitMillis;
+	}
+
+	public synchronized void resetMetrics() {
+		for (ClassQueue queue : mQueues.values()) {
+			queue.mSent = 0;
+			queue.mTotalWaitMillis = 0;
+			queue.mMaxWaitMillis = 0;
+		}
+	}
+
+	/**
+	 * Grants slots to waiting requests while there are slots free.
+	 */
+	private void dispatch() {
+		// at least one slot is left to the other classes
+		int shared = mMaxConcurrent
+				- Math.min(mReservedInteractive, mMaxConcurrent - 1);
+		boolean granted = false;
+		while (mInFlight < mMaxConcurrent) {
+			Waiter next = null;
+			for (Priority priority : Priority.values()) {
+				if (priority != Priority.INTERACTIVE && mInFlight >= shared) {
+					break;
+				}
+				next = mQueues.get(priority).next();
+				if (next != null) {
+					break;
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			next.mGranted = true;
+			mInFlight++;
+			mQueues.get(next.mPriority).recordWait(now() - next.mQueued);
+			granted = true;
+		}
+		if (granted) {
+			notifyAll();
+		}
+	}
+
+	private int weight(String siteId) {
+		Integer weight = mSiteWeights.get(siteId);
+		return weight == null ? 1 : weight;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private static class Waiter {
+
+		final Priority mPriority;
+		final String mSiteId;
+		final long mQueued = now();
+		boolean mGranted;
+
+		Waiter(Priority priority, String siteId) {
+			mPriority = priority;
+			mSiteId = siteId;
+		}
+	}
+
+	/**
+	 * The waiting requests of one class, taken from the sites in weighted
+	 * round robin.
+	 */
+	private class ClassQueue {
+
+		// the waiting requests of each site with any
+		final Map<String, LinkedList<Waiter>> mBySite = new HashMap<String, LinkedList<Waiter>>();
+		// the sites with waiting requests, the first being the one whose turn
+		// it is
+		final LinkedList<String> mTurns = new LinkedList<String>();
+		// requests the first site may still send this turn, 0 if its turn has
+		// not started
+		int mCredit;
+		int mCount;
+
+		long mSent;
+		long mTotalWaitMillis;
+		long mMaxWaitMillis;
+
+		void add(Waiter waiter) {
+			LinkedList<Waiter> waiters = mBySite.get(waiter.mSiteId);
+			if (waiters == null) {
+				waiters = new LinkedList<Waiter>();
+				mBySite.put(waiter.mSiteId, waiters);
+				mTurns.addLast(waiter.mSiteId);
+			}
+			waiters.addLast(waiter);
+			mCount++;
+		}
+
+		Waiter next() {
+			if (mTurns.isEmpty()) {
+				return null;
+			}
+			String siteId = mTurns.getFirst();
+			if (mCredit <= 0) {
+				mCredit = weight(siteId);
+			}
+			LinkedList<Waiter> waiters = mBySite.get(siteId);
+			Waiter waiter = waiters.removeFirst();
+			mCount--;
+			mCredit--;
+			if (waiters.isEmpty()) {
+				mBySite.remove(siteId);
+				mTurns.removeFirst();
+				mCredit = 0;
+			} else if (mCredit == 0) {
+				mTurns.addLast(mTurns.removeFirst());
+			}
+			return waiter;
+		}
+
+		void remove(Waiter waiter) {
+			LinkedList<Waiter> waiters = mBySite.get(waiter.mSiteId);
+			if (waiters == null || !waiters.remove(waiter)) {
+				return;
+			}
+			mCount--;
+			if (waiters.isEmpty()) {
+				mBySite.remove(waiter.mSiteId);
+				if (waiter.mSiteId.equals(mTurns.getFirst())) {
+					mCredit = 0;
+				}
+				mTurns.remove(waiter.mSiteId);
+			}
+		}
+
+		void recordWait(long waitMillis) {
+			mSent++;
+			mTotalWaitMillis += waitMillis;
+			mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.parworks.androidlibrary.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.parworks.androidlibrary.ar.ARException;
+import com.parworks.androidlibrary.ar.CancellationToken;
+
+/**
+ * An image read into memory so it can be uploaded more than once. Its SHA-1
+ * is computed in the same pass that reads it, so it can be used as a cache key
+ * without reading the image again.
+ */
+public class SpooledImage {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final byte[] mBytes;
+	private final int mLength;
+	private final String mSha1;
+
+	/**
+	 * Reads and closes an image.
+	 *
+	 * @throws ARException
+	 *             if the image can't be read, or the calling thread's
+	 *             RequestContext is cancelled while it is read
+	 */
+	public SpooledImage(InputStream image) {
+		CancellationToken token = RequestContext.currentCancellationToken();
+		MessageDigest digest = newSha1();
+		byte[] bytes = new byte[64 * 1024];
+		int length = 0;
+		try {
+			int read;
+			while ((read = image.read(bytes, length, bytes.length - length)) != -1) {
+				if (token != null) {
+					token.throwIfCancelled();
+				}
+				digest.update(bytes, length, read);
+				length += read;
+				if (length == bytes.length) {
+					byte[] grown = new byte[bytes.length * 2];
+					System.arraycopy(bytes, 0, grown, 0, length);
+					bytes = grown;
+				}
+			}
+		} catch (IOException e) {
+			throw new ARException("Couldn't read the image.", e);
+		} finally {
+			try {
+				image.close();
+			} catch (IOException e) {
+				// everything needed has been read
+			}
+		}
+		mBytes = bytes;
+		mLength = length;
+		mSha1 = toHex(digest.digest());
+	}
+
+	/**
+	 * @return a new stream over the image, which need not be closed
+	 */
+	public InputStream newInputStream() {
+		return new ByteArrayInputStream(mBytes, 0, mLength);
+	}
+
+	/**
+	 * @return the buffer holding the image. Only the first getLength() bytes
+	 *         are the image. It must not be modified.
+	 */
+	public byte[] getBuffer() {
+		return mBytes;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return the SHA-1 of the image in lower case hex
+	 */
+	public String getSha1() {
+		return mSha1;
+	}
+
+	/**
+	 * @return the SHA-1 of a string's UTF-8 bytes in lower case hex
+	 */
+	public static String sha1(String value) {
+		try {
+			return toHex(newSha1().digest(value.getBytes("UTF-8")));
+		} catch (IOException e) {
+			throw new ARException(e);
+		}
+	}
+
+	private static MessageDigest newSha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new ARException("SHA-1 is not available.", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}